@@ -0,0 +1,28 @@
+package ducktype;
+
+/**
+ * Presents objects of one class as another type
+ *
+ * <p>Adapters are obtained from {@link DuckType#adapterFor(Class, Class)}.
+ * All the work of generating and linking the proxy class is done when the
+ * adapter is created, so wrapping an object only costs the allocation of the
+ * proxy itself. Adapters are thread-safe.</p>
+ *
+ * <p>Instances of subclasses of that class are wrapped by the adapter of their
+ * own class, so that methods only the subclass has are found too.</p>
+ *
+ * @param <T> the type objects are presented as
+ */
+public interface Adapter<T> {
+
+    /**
+     * Duck types an object
+     *
+     * @param target the object to wrap. Must be an instance of the class this
+     * adapter was created for.
+     * @return "target", interpreted as the adapter's type
+     * @throws IllegalArgumentException if "target" isn't an instance of the
+     * class this adapter was created for
+     */
+    T wrap(Object target);
+}
@@ -0,0 +1,394 @@
+package ducktype;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import net.sf.cglib.asm.ClassVisitor;
+import net.sf.cglib.asm.Label;
+import net.sf.cglib.asm.Type;
+import net.sf.cglib.core.AbstractClassGenerator;
+import net.sf.cglib.core.ClassEmitter;
+import net.sf.cglib.core.CodeEmitter;
+import net.sf.cglib.core.Constants;
+import net.sf.cglib.core.EmitUtils;
+import net.sf.cglib.core.ReflectUtils;
+import net.sf.cglib.core.Signature;
+import net.sf.cglib.core.TypeUtils;
+
+/**
+ * Generates direct-call adapter classes
+ *
+ * <p>An adapter for a requested type and a list of delegate classes is a
+ * subclass of the requested type (or an implementation of it, for interfaces)
+ * that holds each delegate in a final field and forwards each public method to
+ * the matching public method of the delegate chosen by
+ * {@link DispatchPlan#choose(Class, Class[], String, Class[], Linkage)}, with a plain
+ * {@code invokevirtual}, or {@code invokestatic} for static methods. No
+ * arguments are boxed, no argument arrays are allocated and no reflection takes
+ * place, so the JIT can inline through the adapter into the delegates. {@link DuckType} adapters have a single
+ * delegate, the target; frozen {@link Mixin}s have one per inherited
+ * delegate.</p>
+ *
+ * <p>Methods of the requested type that none of the delegates implement throw
+ * a {@code NoSuchMethodError}, just like the intercepted proxies do. The
+ * {@code equals}, {@code hashCode} and {@code toString} methods are generated
+ * to behave like those of the intercepted proxies too.</p>
+ *
+ * <p>When the requested type and the delegates are all public, each adapter is
+ * defined in a class loader of its own, so that it can be unloaded as soon as
+ * its caches forget it, without waiting for the classes it adapts. Otherwise
+ * it has to be defined next to them, to access them, and is unloaded with
+ * them.</p>
+ */
+final class AdapterGenerator extends AbstractClassGenerator {
+
+    private static final Source SOURCE = new Source(DuckType.class.getName());
+    private static final String DELEGATE_FIELD = "DUCKTYPE$DELEGATE_";
+    private static final String MIXIN_FIELD = "DUCKTYPE$MIXIN";
+    private static final Type NO_SUCH_METHOD_ERROR = Type.getType(NoSuchMethodError.class);
+    private static final Signature EQUALS = TypeUtils.parseSignature("boolean equals(Object)");
+    private static final Signature IDENTITY_HASH_CODE = TypeUtils.parseSignature("int identityHashCode(Object)");
+    private static final Signature TO_STRING = TypeUtils.parseSignature("String toString()");
+
+    /**
+     * Defines a single adapter class
+     */
+    private static final class AdapterLoader extends ClassLoader {
+
+        AdapterLoader(final ClassLoader parent) {
+            super(parent);
+        }
+    }
+
+    private final Class<?> type;
+    private final Class<?>[] delegateClasses;
+    private final boolean mixin;
+
+    private AdapterGenerator(final Class<?> type, final Class<?>[] delegateClasses, final boolean mixin, final ClassLoader loader) {
+        super(SOURCE);
+        this.type = type;
+        this.delegateClasses = delegateClasses;
+        this.mixin = mixin;
+        setNamePrefix(namePrefix(type, delegateClasses));
+        setClassLoader(loader);
+        // adapters are cached by DuckType and Shape, not by cglib
+        setUseCache(false);
+    }
+
+    /**
+     * Generates an adapter class for a single target and returns its constructor
+     *
+     * @param type the requested type
+     * @param targetClass the class of the objects that will be adapted
+     * @return a handle of type {@code (Object)Object} that creates an adapter
+     * for a target, or {@code null} if no adapter can be generated for this
+     * combination of classes (eg. because of access restrictions), in which
+     * case callers should fall back to an intercepted proxy
+     */
+    static MethodHandle compile(final Class<?> type, final Class<?> targetClass) {
+        return compile(type, new Class<?>[]{targetClass}, false);
+    }
+
+    /**
+     * Generates an adapter class for a list of delegates and returns its constructor
+     *
+     * @param type the requested type
+     * @param delegateClasses the classes of the delegates, in lookup order
+     * @param mixin whether the adapter stands for a {@link Mixin}, and should
+     * behave like a mixin proxy rather than like a {@link DuckType} proxy
+     * @return a handle that takes one {@code Object} argument per delegate,
+     * preceded by the {@code Mixin} for mixin adapters, and returns a new
+     * adapter, or {@code null} if no adapter can be generated for this
+     * combination of classes
+     */
+    static MethodHandle compile(final Class<?> type, final Class<?>[] delegateClasses, final boolean mixin) {
+        if (Modifier.isFinal(type.getModifiers()) || type.isPrimitive() || type.isArray()) {
+            return null;
+        }
+        final ClassLoader visible = loaderFor(type, delegateClasses);
+        if (visible == null) {
+            return null;
+        }
+        final String pkg = packageOf(namePrefix(type, delegateClasses));
+        boolean allPublic = Modifier.isPublic(type.getModifiers());
+        if (!accessible(type, pkg, visible)) {
+            return null;
+        }
+        for (Class<?> delegateClass : delegateClasses) {
+            if (!accessible(delegateClass, pkg, visible)) {
+                return null;
+            }
+            allPublic &= Modifier.isPublic(delegateClass.getModifiers());
+        }
+        final ClassLoader loader = allPublic ? new AdapterLoader(visible) : visible;
+        final StringBuilder key = new StringBuilder(type.getName());
+        for (Class<?> delegateClass : delegateClasses) {
+            key.append('/').append(delegateClass.getName());
+        }
+        final Class<?> adapter = (Class<?>) new AdapterGenerator(type, delegateClasses, mixin, loader).create(key.toString());
+        final Class<?>[] parameterTypes = new Class<?>[delegateClasses.length + (mixin ? 1 : 0)];
+        Arrays.fill(parameterTypes, Object.class);
+        try {
+            final Field adaptee = adapter.getDeclaredField(mixin ? MIXIN_FIELD : DELEGATE_FIELD + 0);
+            adaptee.setAccessible(true);
+            Enhancers.registerAdapter(adapter, MethodHandles.lookup().unreflectGetter(adaptee)
+                    .asType(MethodType.methodType(Object.class, Object.class)));
+            if (!type.isInterface()) {
+                // the constructors of the requested class are wasted work
+                final String[] fields = new String[parameterTypes.length];
+                final int first = mixin ? 1 : 0;
+                if (mixin) {
+                    fields[0] = MIXIN_FIELD;
+                }
+                for (int i = 0; i < delegateClasses.length; i++) {
+                    fields[first + i] = DELEGATE_FIELD + i;
+                }
+                final MethodHandle bypassing = Instantiator.handle(adapter, fields);
+                if (bypassing != null) {
+                    return bypassing;
+                }
+            }
+            return MethodHandles.publicLookup()
+                    .findConstructor(adapter, MethodType.methodType(void.class, parameterTypes))
+                    .asType(MethodType.methodType(Object.class, parameterTypes));
+        } catch (NoSuchFieldException | NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String namePrefix(final Class<?> type, final Class<?>[] delegateClasses) {
+        // cglib moves classes that would be generated in java.* out of that
+        // namespace, so prefer a delegate's package for JDK types
+        if (type.getName().startsWith("java")) {
+            for (Class<?> delegateClass : delegateClasses) {
+                if (!delegateClass.getName().startsWith("java")) {
+                    return delegateClass.getName();
+                }
+            }
+        }
+        return type.getName();
+    }
+
+    private static String packageOf(final String className) {
+        final String name = className.startsWith("java") ? "$" + className : className;
+        final int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(0, dot);
+    }
+
+    private static boolean accessible(final Class<?> c, final String pkg, final ClassLoader loader) {
+        if (Modifier.isPublic(c.getModifiers())) {
+            return true;
+        }
+        return c.getClassLoader() == loader && packageOf(c.getName()).equals(pkg);
+    }
+
+    /**
+     * Finds a class loader that sees the requested type and all the delegates
+     */
+    private static ClassLoader loaderFor(final Class<?> type, final Class<?>[] delegateClasses) {
+        if (seesAll(type.getClassLoader(), type, delegateClasses)) {
+            return type.getClassLoader();
+        }
+        for (Class<?> delegateClass : delegateClasses) {
+            if (delegateClass.getClassLoader() != null && seesAll(delegateClass.getClassLoader(), type, delegateClasses)) {
+                return delegateClass.getClassLoader();
+            }
+        }
+        return null;
+    }
+
+    private static boolean seesAll(final ClassLoader loader, final Class<?> type, final Class<?>[] delegateClasses) {
+        if (!sees(loader, type)) {
+            return false;
+        }
+        for (Class<?> delegateClass : delegateClasses) {
+            if (!sees(loader, delegateClass)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sees(final ClassLoader loader, final Class<?> c) {
+        if (loader == null) {
+            return c.getClassLoader() == null;
+        }
+        try {
+            return Class.forName(c.getName(), false, loader) == c;
+        } catch (ClassNotFoundException cnfe) {
+            return false;
+        }
+    }
+
+    @Override
+    protected ClassLoader getDefaultClassLoader() {
+        return type.getClassLoader();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // overrides cglib's raw signature
+    protected Object firstInstance(final Class generated) {
+        return generated;
+    }
+
+    @Override
+    protected Object nextInstance(final Object instance) {
+        return instance;
+    }
+
+    @Override
+    public void generateClass(final ClassVisitor v) {
+        final ClassEmitter ce = new ClassEmitter(v);
+        if (type.isInterface()) {
+            ce.begin_class(Constants.V1_2, Constants.ACC_PUBLIC, getClassName(), Constants.TYPE_OBJECT, new Type[]{Type.getType(type)}, Constants.SOURCE_FILE);
+        } else {
+            ce.begin_class(Constants.V1_2, Constants.ACC_PUBLIC, getClassName(), Type.getType(type), null, Constants.SOURCE_FILE);
+        }
+
+        final Type[] delegateTypes = new Type[delegateClasses.length];
+        final int first = mixin ? 1 : 0;
+        final Type[] parameterTypes = new Type[first + delegateClasses.length];
+        Arrays.fill(parameterTypes, Constants.TYPE_OBJECT);
+        if (mixin) {
+            ce.declare_field(Constants.ACC_PRIVATE | Constants.ACC_FINAL, MIXIN_FIELD, Constants.TYPE_OBJECT, null);
+        }
+        for (int i = 0; i < delegateClasses.length; i++) {
+            delegateTypes[i] = Type.getType(delegateClasses[i]);
+            ce.declare_field(Constants.ACC_PRIVATE | Constants.ACC_FINAL, DELEGATE_FIELD + i, delegateTypes[i], null);
+        }
+
+        CodeEmitter e = ce.begin_method(Constants.ACC_PUBLIC, TypeUtils.parseConstructor(parameterTypes), null);
+        e.load_this();
+        e.super_invoke_constructor();
+        if (mixin) {
+            e.load_this();
+            e.load_arg(0);
+            e.putfield(MIXIN_FIELD);
+        }
+        for (int i = 0; i < delegateClasses.length; i++) {
+            e.load_this();
+            e.load_arg(first + i);
+            e.checkcast(delegateTypes[i]);
+            e.putfield(DELEGATE_FIELD + i);
+        }
+        e.return_value();
+        e.end_method();
+
+        for (Method method : Enhancers.adaptedMethods(type)) {
+            e = EmitUtils.begin_method(ce, ReflectUtils.getMethodInfo(method), Constants.ACC_PUBLIC);
+            final String name = method.getName();
+            final Class<?>[] methodParameterTypes = method.getParameterTypes();
+            final int objectMethod = ObjectMethods.kind(method);
+            final int delegate = DispatchPlan.choose(type, delegateClasses, name, methodParameterTypes, Linkage.COMPILED);
+            if (mixin && objectMethod != ObjectMethods.NONE) {
+                emitMixinObjectMethod(e, objectMethod);
+            } else if (objectMethod == ObjectMethods.EQUALS && delegate >= 0) {
+                emitUnwrappingEquals(e, delegate, delegateTypes[delegate]);
+            } else if (delegate < 0) {
+                e.throw_exception(NO_SUCH_METHOD_ERROR, mixin || delegateClasses.length != 1
+                        ? method.toGenericString()
+                        : MethodIndex.of(delegateClasses[0], Linkage.COMPILED).describe(name, methodParameterTypes));
+            } else {
+                final Method target = MethodIndex.of(delegateClasses[delegate], Linkage.COMPILED).findMethod(name, methodParameterTypes);
+                if (Modifier.isStatic(target.getModifiers())) {
+                    e.load_args();
+                    e.invoke_static(delegateTypes[delegate], ReflectUtils.getSignature(target));
+                } else {
+                    e.load_this();
+                    e.getfield(DELEGATE_FIELD + delegate);
+                    e.load_args();
+                    e.invoke_virtual(delegateTypes[delegate], ReflectUtils.getSignature(target));
+                }
+                convert(e, Type.getType(target.getReturnType()), e.getReturnType());
+                e.return_value();
+            }
+            e.end_method();
+        }
+        ce.end_class();
+    }
+
+    /**
+     * Emits {@code equals}, {@code hashCode} or {@code toString} the way
+     * intercepted {@link Mixin} proxies answer them: equal only to itself,
+     * hashed by identity, and described by its mixin
+     */
+    private static void emitMixinObjectMethod(final CodeEmitter e, final int objectMethod) {
+        switch (objectMethod) {
+            case ObjectMethods.EQUALS:
+                final Label same = e.make_label();
+                e.load_this();
+                e.load_arg(0);
+                e.if_cmp(Constants.TYPE_OBJECT, CodeEmitter.EQ, same);
+                e.push(false);
+                e.return_value();
+                e.mark(same);
+                e.push(true);
+                break;
+            case ObjectMethods.HASH_CODE:
+                e.load_this();
+                e.invoke_static(Constants.TYPE_SYSTEM, IDENTITY_HASH_CODE);
+                break;
+            default:
+                e.load_this();
+                e.getfield(MIXIN_FIELD);
+                e.invoke_virtual(Constants.TYPE_OBJECT, TO_STRING);
+                break;
+        }
+        e.return_value();
+    }
+
+    /**
+     * Emits an {@code equals} that compares the target with the argument's
+     * target if the argument is an adapter of the same class, so that adapters
+     * of equal targets are equal, and that is false otherwise, so that it stays
+     * symmetric
+     */
+    private static void emitUnwrappingEquals(final CodeEmitter e, final int delegate, final Type delegateType) {
+        final Label other = e.make_label();
+        e.load_arg(0);
+        e.instance_of_this();
+        e.if_jump(CodeEmitter.EQ, other);
+        e.load_this();
+        e.getfield(DELEGATE_FIELD + delegate);
+        e.load_arg(0);
+        e.checkcast_this();
+        e.getfield(DELEGATE_FIELD + delegate);
+        e.invoke_virtual(delegateType, EQUALS);
+        e.return_value();
+        e.mark(other);
+        e.push(false);
+        e.return_value();
+    }
+
+    /**
+     * Converts the value on top of the stack the same way an intercepted
+     * proxy converts the value returned by its interceptor
+     */
+    private static void convert(final CodeEmitter e, final Type from, final Type to) {
+        if (from.equals(to)) {
+            return;
+        }
+        if (to == Type.VOID_TYPE) {
+            if (from.getSize() == 2) {
+                e.pop2();
+            } else if (from.getSize() == 1) {
+                e.pop();
+            }
+            return;
+        }
+        if (from == Type.VOID_TYPE) {
+            e.zero_or_null(to);
+            return;
+        }
+        e.box(from);
+        if (TypeUtils.isPrimitive(to)) {
+            e.unbox_or_zero(to);
+        } else {
+            e.checkcast(to);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ducktype;
+
+/**
+ * How the classes of intercepted proxies are generated
+ *
+ * <p>The backend used for new proxy classes can be chosen with the
+ * {@code ducktype.backend} system property, or at runtime with
+ * {@link #setDefault(Backend)}. Proxies that already exist keep the class they
+ * were created with. Types that a backend cannot proxy, such as classes for
+ * the interface-only backends, get a {@link #CGLIB} proxy instead.</p>
+ *
+ * <p>Proxies compiled into direct-call adapters (see {@link Linkage#COMPILED})
+ * aren't intercepted, and don't depend on the backend.</p>
+ */
+public enum Backend {
+
+    /**
+     * cglib {@code Enhancer} subclasses, which can proxy classes as well as
+     * interfaces, and intercept protected methods. This is the default.
+     */
+    CGLIB {
+        @Override
+        Enhancers.ProxyClass define(final Class<?>[] types) {
+            return new CglibProxyClass(types);
+        }
+    },
+    /**
+     * {@code java.lang.reflect.Proxy} classes, for interfaces only. Proxy
+     * classes are created without loading cglib, although the
+     * {@link Linkage#FAST_CLASS} and {@link Linkage#COMPILED} linkages still
+     * use it to reach the targets. Checked exceptions that a method doesn't
+     * declare are wrapped in an {@code UndeclaredThrowableException}.
+     */
+    JDK_PROXY {
+        @Override
+        Enhancers.ProxyClass define(final Class<?>[] types) {
+            return JdkProxyClass.define(types);
+        }
+    },
+    /**
+     * Hidden classes, defined with {@code Lookup.defineHiddenClass}, for
+     * interfaces that this library's class loader can see. Hidden classes
+     * cannot be looked up by name, and can be unloaded independently of any
+     * class loader. Requires Java 15 or later.
+     */
+    HIDDEN_CLASS {
+        @Override
+        Enhancers.ProxyClass define(final Class<?>[] types) {
+            return HiddenProxyClass.define(types);
+        }
+    };
+
+    private static volatile Backend current = fromProperty(System.getProperty("ducktype.backend"));
+
+    private static Backend fromProperty(final String value) {
+        return value == null ? CGLIB : valueOf(value.trim().toUpperCase());
+    }
+
+    /**
+     * Returns the backend used for new proxy classes
+     *
+     * @return the current default backend
+     */
+    public static Backend getDefault() {
+        return current;
+    }
+
+    /**
+     * Sets the backend used for new proxy classes
+     *
+     * @param backend the new default backend
+     */
+    public static void setDefault(final Backend backend) {
+        if (backend == null) {
+            throw new NullPointerException("backend");
+        }
+        current = backend;
+    }
+
+    /**
+     * Tells whether this backend can generate proxy classes in this JVM
+     *
+     * @return {@code false} if every type falls back to {@link #CGLIB}
+     */
+    public boolean isAvailable() {
+        return this != HIDDEN_CLASS || HiddenProxyClass.isAvailable();
+    }
+
+    /**
+     * Generates the proxy class for a set of types
+     *
+     * @param types the requested types: any number of interfaces, and at most
+     * one class, which comes first
+     * @return the proxy class, or {@code null} if this backend cannot proxy
+     * these types
+     */
+    abstract Enhancers.ProxyClass define(Class<?>[] types);
+}
@@ -0,0 +1,438 @@
+package ducktype;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rough micro-benchmarks for the different ways of duck typing an object
+ *
+ * <p>Each case is warmed up before being timed, and the best of several rounds
+ * is reported. The numbers are only meaningful relative to each other. Pass
+ * the number of iterations per round as the first argument.</p>
+ *
+ * <p>Each case runs in a JVM of its own, started with the same options as
+ * this one, so that the type profiles gathered by one case don't skew the
+ * code the JIT compiles for the next. Pass the index of a case as the second
+ * argument to run just that case, in this JVM.</p>
+ */
+public class Benchmark {
+
+    public interface Counter {
+
+        long add(int x);
+    }
+
+    public interface Twice {
+
+        long twice(long x);
+    }
+
+    public static class Accumulator {
+
+        private long total;
+
+        public long add(final int x) {
+            return total += x;
+        }
+    }
+
+    public static class Tally {
+
+        public long add(final int x) {
+            return x;
+        }
+    }
+
+    public static class Maximum {
+
+        private long max;
+
+        public long add(final int x) {
+            return max = Math.max(max, x);
+        }
+    }
+
+    private static abstract class Case {
+
+        final String name;
+        final int iterations;
+        /**
+         * The defaults the case was set up with, which it measures with
+         */
+        private final Linkage linkage = Linkage.getDefault();
+        private final Backend backend = Backend.getDefault();
+
+        Case(final String name, final int iterations) {
+            this.name = name;
+            this.iterations = iterations;
+        }
+
+        /**
+         * Runs the case, returning a value that depends on all the work done
+         */
+        abstract long run(int iterations);
+
+        /**
+         * Prepares the case, in the JVM that measures it
+         */
+        void setUp() {
+        }
+
+        /**
+         * Prints what the case counted, after it has been measured
+         */
+        void report() {
+        }
+
+        void measure() {
+            Linkage.setDefault(linkage);
+            Backend.setDefault(backend);
+            setUp();
+            for (int i = 0; i < ROUNDS; i++) {
+                sink += run(iterations);
+            }
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < ROUNDS; i++) {
+                final long start = System.nanoTime();
+                sink += run(iterations);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("%-50s %8.2f ns/op%n", name, (double) best / iterations);
+            report();
+        }
+    }
+
+    private static final int ROUNDS = 5;
+    private static volatile long sink;
+
+    private static Case invoke(final String name, final int iterations, final Counter counter) {
+        return new Case(name, iterations) {
+            @Override
+            long run(final int iterations) {
+                long result = 0;
+                for (int i = 0; i < iterations; i++) {
+                    result += counter.add(i);
+                }
+                return result;
+            }
+        };
+    }
+
+    private static final Object[] escaped = new Object[1024];
+
+    private static Case create(final String name, final int iterations, final Adapter<Counter> adapter, final boolean viaAsA) {
+        final Accumulator accumulator = new Accumulator();
+        return new Case(name, iterations) {
+            @Override
+            long run(final int iterations) {
+                for (int i = 0; i < iterations; i++) {
+                    // let the proxies escape, so that they really get allocated
+                    escaped[i & 1023] = viaAsA ? DuckType.asA(accumulator, Counter.class) : adapter.wrap(accumulator);
+                }
+                return escaped[0].hashCode();
+            }
+        };
+    }
+
+    /**
+     * A class with an expensive constructor, whose proxies shouldn't pay for it
+     */
+    public static class Heavy {
+
+        private final long[] table = new long[512];
+
+        public Heavy() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = i * 31L;
+            }
+        }
+
+        public long add(final int x) {
+            return table[x & 511] + x;
+        }
+    }
+
+    public static class Doubler {
+
+        public long twice(final long x) {
+            return 2 * x;
+        }
+    }
+
+    /**
+     * Interfaces whose combinations give plenty of distinct proxy classes
+     */
+    private static final Class<?>[] ROLES = {Runnable.class, AutoCloseable.class, Flushable.class, Appendable.class, Readable.class, CharSequence.class, Comparable.class, Iterable.class};
+
+    private static long metaspaceUsed() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals("Metaspace")) {
+                return pool.getUsage().getUsed();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Generates a proxy class for each combination of 2 to 7 {@link #ROLES},
+     * and reports what it costs per class
+     */
+    private static Case defineProxyClasses(final Backend backend) {
+        return new Case("proxy class definition, " + backend, 1) {
+            @Override
+            long run(final int iterations) {
+                return 0;
+            }
+
+            @Override
+            void measure() {
+                defineProxyClasses(backend, name);
+            }
+        };
+    }
+
+    private static void defineProxyClasses(final Backend backend, final String name) {
+        final List<Class<?>[]> combinations = new ArrayList<>();
+        for (int mask = 0; mask < 1 << ROLES.length; mask++) {
+            final int size = Integer.bitCount(mask);
+            if (size >= 2 && size < ROLES.length) {
+                final Class<?>[] types = new Class<?>[size];
+                for (int i = 0, j = 0; i < ROLES.length; i++) {
+                    if ((mask & 1 << i) != 0) {
+                        types[j++] = ROLES[i];
+                    }
+                }
+                combinations.add(types);
+            }
+        }
+        final Backend previous = Backend.getDefault();
+        Backend.setDefault(backend);
+        // loads whatever the backend needs, outside of the measurement
+        new Mixin().asA(ROLES);
+        final long before = metaspaceUsed();
+        final long start = System.nanoTime();
+        for (Class<?>[] types : combinations) {
+            escaped[combinations.size() & 1023] = new Mixin().asA(types);
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long metaspace = metaspaceUsed() - before;
+        Backend.setDefault(previous);
+        System.out.printf("%-50s %8.2f us/class, %d bytes of metaspace/class%n",
+                name, elapsed / 1e3 / combinations.size(), metaspace / combinations.size());
+    }
+
+    /**
+     * Sets up every case, in the order they are reported
+     */
+    private static List<Case> cases(final int iterations) {
+        final List<Case> cases = new ArrayList<>();
+        final Accumulator accumulator = new Accumulator();
+        cases.add(new Case("direct call", iterations) {
+            @Override
+            long run(final int iterations) {
+                long result = 0;
+                for (int i = 0; i < iterations; i++) {
+                    result += accumulator.add(i);
+                }
+                return result;
+            }
+        });
+        final Linkage previous = Linkage.getDefault();
+        for (Linkage linkage : Linkage.values()) {
+            Linkage.setDefault(linkage);
+            cases.add(invoke("DuckType invocation, " + linkage, iterations, DuckType.asA(new Accumulator(), Counter.class)));
+            cases.add(invoke("Mixin invocation, " + linkage, iterations, Mixin.mixin(new Accumulator()).asA(Counter.class)));
+            cases.add(create("DuckType.asA creation, " + linkage, iterations / 10, null, true));
+            cases.add(create("Adapter.wrap creation, " + linkage, iterations / 10, DuckType.adapterFor(Accumulator.class, Counter.class), false));
+        }
+        Linkage.setDefault(previous);
+
+        final Backend previousBackend = Backend.getDefault();
+        for (Backend backend : Backend.values()) {
+            Backend.setDefault(backend);
+            cases.add(invoke("DuckType invocation, " + backend + " backend", iterations, DuckType.asA(new Accumulator(), Counter.class)));
+            cases.add(create("DuckType.asA creation, " + backend + " backend", iterations / 10, null, true));
+        }
+        Backend.setDefault(previousBackend);
+        for (Backend backend : Backend.values()) {
+            cases.add(defineProxyClasses(backend));
+        }
+
+        final Object[] items = new Object[1024];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = new Accumulator();
+        }
+        for (Linkage linkage : new Linkage[]{Linkage.FAST_CLASS, Linkage.COMPILED, Linkage.TIERED}) {
+            Linkage.setDefault(linkage);
+            cases.add(new Case("DuckType.asA per item, " + linkage, iterations) {
+                @Override
+                long run(final int iterations) {
+                    long result = 0;
+                    for (int i = 0; i < iterations; i++) {
+                        result += DuckType.asA(items[i & 1023], Counter.class).add(i);
+                    }
+                    return result;
+                }
+            });
+        }
+        Linkage.setDefault(previous);
+        cases.add(new Case("DuckType.asA per item, with a proxy cache", iterations) {
+            private final ProxyCache cache = new ProxyCache(4096);
+
+            @Override
+            void setUp() {
+                DuckType.setProxyCache(cache);
+            }
+
+            @Override
+            long run(final int iterations) {
+                long result = 0;
+                for (int i = 0; i < iterations; i++) {
+                    result += DuckType.asA(items[i & 1023], Counter.class).add(i);
+                }
+                return result;
+            }
+
+            @Override
+            void report() {
+                System.out.printf("  %d hits, %d misses, %d evictions, %d collected%n", cache.hits(), cache.misses(), cache.evictions(), cache.collections());
+            }
+        });
+        final Rebindable<Counter> rebindable = DuckType.rebindable(Counter.class);
+        cases.add(new Case("Rebindable.rebind per item", iterations) {
+            @Override
+            long run(final int iterations) {
+                long result = 0;
+                for (int i = 0; i < iterations; i++) {
+                    result += rebindable.rebind(items[i & 1023]).add(i);
+                }
+                return result;
+            }
+        });
+
+        for (int cacheSize : new int[]{1, 3}) {
+            final PolymorphicAdapter<Counter> adapter = DuckType.polymorphicAdapterFor(Counter.class, cacheSize);
+            final Counter[] counters = {adapter.wrap(new Accumulator()), adapter.wrap(new Tally()), adapter.wrap(new Maximum())};
+            cases.add(new Case("PolymorphicAdapter, 3 classes, cache size " + cacheSize, iterations) {
+                @Override
+                long run(final int iterations) {
+                    long result = 0;
+                    for (int i = 0; i < iterations; i++) {
+                        result += counters[i % counters.length].add(i);
+                    }
+                    return result;
+                }
+
+                @Override
+                void report() {
+                    System.out.printf("  %d hits, %d misses, %d megamorphic calls%n", adapter.hits(), adapter.misses(), adapter.megamorphicCalls());
+                }
+            });
+        }
+
+        for (int fillers : new int[]{0, 4, 9}) {
+            final Mixin mixin = new Mixin();
+            for (int i = 0; i < fillers; i++) {
+                mixin.inherit(new Object());
+            }
+            mixin.inherit(new Accumulator());
+            cases.add(invoke("Mixin invocation, answered by delegate #" + (fillers + 1), iterations, mixin.asA(Counter.class)));
+            cases.add(invoke("frozen Mixin invocation, answered by delegate #" + (fillers + 1), iterations, mixin.freeze().asA(Counter.class)));
+        }
+
+        cases.add(new Case("Heavy constructor", iterations / 10) {
+            @Override
+            long run(final int iterations) {
+                for (int i = 0; i < iterations; i++) {
+                    escaped[i & 1023] = new Heavy();
+                }
+                return escaped[0].hashCode();
+            }
+        });
+        for (Linkage linkage : new Linkage[]{Linkage.FAST_CLASS, Linkage.COMPILED}) {
+            Linkage.setDefault(linkage);
+            cases.add(new Case("DuckType.asA creation as Heavy, " + linkage, iterations / 10) {
+                @Override
+                long run(final int iterations) {
+                    for (int i = 0; i < iterations; i++) {
+                        escaped[i & 1023] = DuckType.asA(accumulator, Heavy.class);
+                    }
+                    return escaped[0].hashCode();
+                }
+            });
+        }
+        Linkage.setDefault(previous);
+
+        cases.add(new Case("array allocation", iterations / 10) {
+            @Override
+            long run(final int iterations) {
+                for (int i = 0; i < iterations; i++) {
+                    escaped[i & 1023] = new Object[]{new Accumulator(), new Doubler()};
+                }
+                return escaped[0].hashCode();
+            }
+        });
+        cases.add(new Case("Mixin creation and asA", iterations / 10) {
+            @Override
+            long run(final int iterations) {
+                for (int i = 0; i < iterations; i++) {
+                    escaped[i & 1023] = Mixin.mixin(new Accumulator(), new Doubler()).asA(Counter.class);
+                }
+                return escaped[0].hashCode();
+            }
+        });
+        cases.add(new Case("Mixin creation and asA of 2 types, one at a time", iterations / 10) {
+            @Override
+            long run(final int iterations) {
+                for (int i = 0; i < iterations; i++) {
+                    final Mixin mixin = Mixin.mixin(new Accumulator(), new Doubler());
+                    escaped[i & 1023] = mixin.asA(Counter.class);
+                    escaped[(i + 1) & 1023] = mixin.asA(Twice.class);
+                }
+                return escaped[0].hashCode();
+            }
+        });
+        cases.add(new Case("Mixin creation and asA of 2 types at once", iterations / 10) {
+            @Override
+            long run(final int iterations) {
+                for (int i = 0; i < iterations; i++) {
+                    escaped[i & 1023] = Mixin.mixin(new Accumulator(), new Doubler()).asA(Counter.class, Twice.class);
+                }
+                return escaped[0].hashCode();
+            }
+        });
+        final Object both = Mixin.mixin(new Accumulator(), new Doubler()).asA(Counter.class, Twice.class);
+        cases.add(invoke("Mixin invocation, composite of 2 types", iterations, (Counter) both));
+        return cases;
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        final List<Case> cases = cases(iterations);
+        if (args.length > 1) {
+            cases.get(Integer.parseInt(args[1])).measure();
+            return;
+        }
+        final List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Benchmark.class.getName());
+        command.add(String.valueOf(iterations));
+        for (int i = 0; i < cases.size(); i++) {
+            final List<String> caseCommand = new ArrayList<>(command);
+            caseCommand.add(String.valueOf(i));
+            final int status = new ProcessBuilder(caseCommand).inheritIO().start().waitFor();
+            if (status != 0) {
+                System.out.printf("%-50s failed, exit status %d%n", cases.get(i).name, status);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package ducktype;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A map that holds at most a fixed number of entries, evicting the oldest ones
+ * beyond that
+ *
+ * <p>This is what the caches of generated classes are made of. They hang off
+ * one of the classes involved, and a class can be used with any number of
+ * others over the life of a server: bounding each cache keeps a long-lived
+ * class from pinning every short-lived class it was ever adapted to, along
+ * with the classes generated for them. An evicted entry is simply generated
+ * again the next time it is needed.</p>
+ *
+ * <p>Lookups never lock; adding an entry does.</p>
+ */
+final class BoundedCache<K, V> {
+
+    /**
+     * The most entries each cache holds
+     */
+    static final int DEFAULT_CAPACITY = Math.max(1, Integer.getInteger("ducktype.generatedCacheSize", 256));
+
+    private final ConcurrentMap<K, V> entries = new ConcurrentHashMap<>();
+    /**
+     * The keys, in the order they were added, for evicting the oldest entries
+     */
+    private final Queue<K> order = new ArrayDeque<>();
+
+    V get(final K key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Adds an entry, unless there already is one for its key
+     *
+     * @return the value now in the cache for the key
+     */
+    synchronized V putIfAbsent(final K key, final V value) {
+        final V existing = entries.putIfAbsent(key, value);
+        if (existing != null) {
+            return existing;
+        }
+        order.add(key);
+        while (order.size() > DEFAULT_CAPACITY) {
+            entries.remove(order.poll());
+        }
+        return value;
+    }
+}
@@ -0,0 +1,147 @@
+package ducktype;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.sf.cglib.core.ReflectUtils;
+import net.sf.cglib.proxy.Callback;
+import net.sf.cglib.proxy.CallbackFilter;
+import net.sf.cglib.proxy.Enhancer;
+import net.sf.cglib.proxy.Factory;
+import net.sf.cglib.proxy.MethodInterceptor;
+import net.sf.cglib.proxy.MethodProxy;
+import net.sf.cglib.proxy.NoOp;
+
+/**
+ * A cglib {@code Enhancer} proxy class, see {@link Backend#CGLIB}
+ *
+ * <p>The slot of each method is the index that its {@link MethodProxy}
+ * exposes. Proxies of classes are created without running the constructors of
+ * the proxied class, see {@link Instantiator}.</p>
+ */
+final class CglibProxyClass extends Enhancers.ProxyClass {
+
+    /**
+     * Leaves {@code finalize()} alone. cglib would otherwise override it, which
+     * makes every proxy finalizable and multiplies the cost of creating one.
+     */
+    private static final CallbackFilter SKIP_FINALIZE = new CallbackFilter() {
+        @Override
+        public int accept(final Method method) {
+            return method.getName().equals("finalize") && method.getParameterTypes().length == 0 ? 1 : 0;
+        }
+    };
+
+    /**
+     * Stands in for the real interceptor in prototype proxies
+     */
+    private static final MethodInterceptor UNBOUND = new MethodInterceptor() {
+        @Override
+        public Object intercept(final Object o, final Method method, final Object[] os, final MethodProxy mp) {
+            throw new IllegalStateException("unbound prototype proxy");
+        }
+    };
+
+    /**
+     * Hands the calls cglib intercepts to an {@link Interceptor}
+     */
+    private static final class Forwarder implements MethodInterceptor {
+
+        final Interceptor interceptor;
+
+        Forwarder(final Interceptor interceptor) {
+            this.interceptor = interceptor;
+        }
+
+        @Override
+        public Object intercept(final Object o, final Method method, final Object[] os, final MethodProxy mp) throws Throwable {
+            return interceptor.intercept(o, method, mp.getSuperIndex(), os);
+        }
+    }
+
+    private final Factory prototype;
+    private final Constructor<?> bypass;
+    private final Method[] slots;
+
+    CglibProxyClass(final Class<?>[] types) {
+        super(types);
+        final boolean extendsClass = !types[0].isInterface();
+        final Enhancer enhancer = new Enhancer();
+        if (extendsClass) {
+            enhancer.setSuperclass(types[0]);
+            enhancer.setInterfaces(Arrays.copyOfRange(types, 1, types.length));
+        } else {
+            enhancer.setInterfaces(types);
+        }
+        enhancer.setCallbackFilter(SKIP_FINALIZE);
+        enhancer.setCallbackTypes(new Class<?>[]{MethodInterceptor.class, NoOp.class});
+        // proxy classes are cached by Enhancers; cglib's own cache would keep
+        // them, and their class loaders, forever
+        enhancer.setUseCache(false);
+        final Class<?> proxyClass = enhancer.createClass();
+
+        // the constructors of a proxied class are wasted work; interfaces
+        // only have Object's
+        this.bypass = extendsClass ? Instantiator.bypassing(proxyClass) : null;
+        if (bypass != null) {
+            this.prototype = null;
+        } else {
+            Enhancer.registerCallbacks(proxyClass, new Callback[]{UNBOUND, NoOp.INSTANCE});
+            try {
+                this.prototype = (Factory) ReflectUtils.newInstance(proxyClass);
+            } finally {
+                Enhancer.registerCallbacks(proxyClass, null);
+            }
+        }
+        this.slots = slotsOf(proxyClass, types);
+        register(proxyClass);
+    }
+
+    @Override
+    Method[] slots() {
+        return slots;
+    }
+
+    @Override
+    Object newInstance(final Interceptor interceptor) {
+        final Callback[] callbacks = {new Forwarder(interceptor), NoOp.INSTANCE};
+        if (bypass == null) {
+            return prototype.newInstance(callbacks);
+        }
+        final Factory proxy;
+        try {
+            proxy = (Factory) bypass.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        proxy.setCallbacks(callbacks);
+        return proxy;
+    }
+
+    @Override
+    Interceptor interceptorOf(final Object proxy) {
+        return ((Forwarder) ((Factory) proxy).getCallback(0)).interceptor;
+    }
+
+    private static Method[] slotsOf(final Class<?> proxyClass, final Class<?>[] types) {
+        final List<Method> methods = new ArrayList<>();
+        final List<Integer> indexes = new ArrayList<>();
+        int size = 0;
+        for (Method method : Enhancers.adaptedMethods(types)) {
+            final MethodProxy mp = MethodProxy.find(proxyClass, ReflectUtils.getSignature(method));
+            if (mp != null) {
+                final int slot = mp.getSuperIndex();
+                methods.add(method);
+                indexes.add(slot);
+                size = Math.max(size, slot + 1);
+            }
+        }
+        final Method[] slots = new Method[size];
+        for (int i = 0; i < methods.size(); i++) {
+            slots[indexes.get(i)] = methods.get(i);
+        }
+        return slots;
+    }
+}
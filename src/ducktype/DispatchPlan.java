@@ -0,0 +1,160 @@
+package ducktype;
+
+import java.lang.reflect.Method;
+
+/**
+ * Decides, once, which delegate answers each method of a proxied type
+ *
+ * <p>A plan is computed from the classes of an ordered list of delegates, and
+ * maps every slot of a proxy class (see {@link Enhancers.ProxyClass#slots()})
+ * to the delegate chosen by {@link #choose(Class, Class[], String, Class[], Linkage)},
+ * and to the invoker for that method. The {@code equals}, {@code hashCode}
+ * and {@code toString} methods are left to the proxy, see
+ * {@link #objectMethod(int)}.</p>
+ *
+ * <p>Plans are immutable and don't reference the delegates themselves, so
+ * calls never scan the delegate list or resolve methods.</p>
+ */
+final class DispatchPlan {
+
+    static final int EXACT = 0;
+    static final int SUBCLASS = 1;
+    static final int STRUCTURAL = 2;
+
+    private final Method[] slots;
+    private final int[] delegates;
+    private final Invoker[] invokers;
+
+    private DispatchPlan(final Method[] slots, final int[] delegates, final Invoker[] invokers) {
+        this.slots = slots;
+        this.delegates = delegates;
+        this.invokers = invokers;
+    }
+
+    /**
+     * Computes a dispatch plan
+     *
+     * <p>The delegates of each method are ranked against the requested type
+     * the method belongs to (see {@link Enhancers.ProxyClass#typeOf(Method)}),
+     * so the plan of a composite proxy is the merge of the plans of its
+     * types.</p>
+     *
+     * @param proxyClass the proxy class
+     * @param delegateClasses the classes of the delegates, in lookup order
+     * @param linkage how the chosen methods should be linked
+     * @return the plan
+     */
+    static DispatchPlan build(final Enhancers.ProxyClass proxyClass, final Class<?>[] delegateClasses, final Linkage linkage) {
+        final Method[] slots = proxyClass.slots();
+        final int[] delegates = new int[slots.length];
+        final Invoker[] invokers = new Invoker[slots.length];
+        for (int slot = 0; slot < slots.length; slot++) {
+            delegates[slot] = -1;
+            if (slots[slot] == null) {
+                continue;
+            }
+            final int objectMethod = ObjectMethods.kind(slots[slot]);
+            if (objectMethod != ObjectMethods.NONE) {
+                delegates[slot] = -1 - objectMethod;
+                continue;
+            }
+            final String name = slots[slot].getName();
+            final Class<?>[] parameterTypes = slots[slot].getParameterTypes();
+            final int delegate = choose(proxyClass.typeOf(slots[slot]), delegateClasses, name, parameterTypes, linkage);
+            if (delegate >= 0) {
+                delegates[slot] = delegate;
+                invokers[slot] = MethodIndex.of(delegateClasses[delegate], linkage).find(name, parameterTypes);
+            }
+        }
+        return new DispatchPlan(slots, delegates, invokers);
+    }
+
+    /**
+     * Chooses the delegate that answers a method of a proxied type
+     *
+     * <p>Among the delegates that have a matching public method, an instance
+     * of the proxied type itself is preferred, then an instance of a subclass
+     * (or an implementation) of it, then any other delegate, which merely
+     * matches structurally. Delegates that rank the same are tried in lookup
+     * order.</p>
+     *
+     * @param type the proxied type
+     * @param delegateClasses the classes of the delegates, in lookup order
+     * @param name the method name
+     * @param parameterTypes the method parameter types
+     * @param linkage the linkage whose method indexes should be consulted
+     * @return the index of the delegate, or -1 if none of them answers
+     */
+    static int choose(final Class<?> type, final Class<?>[] delegateClasses, final String name, final Class<?>[] parameterTypes, final Linkage linkage) {
+        int chosen = -1;
+        int chosenRank = STRUCTURAL + 1;
+        for (int i = 0; i < delegateClasses.length && chosenRank != EXACT; i++) {
+            final int rank = rank(type, delegateClasses[i]);
+            if (rank < chosenRank && MethodIndex.of(delegateClasses[i], linkage).findMethod(name, parameterTypes) != null) {
+                chosen = i;
+                chosenRank = rank;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Ranks how well a delegate class matches a proxied type, lower is better
+     *
+     * @param type the proxied type
+     * @param delegateClass the class of the delegate
+     * @return {@link #EXACT}, {@link #SUBCLASS} or {@link #STRUCTURAL}
+     */
+    static int rank(final Class<?> type, final Class<?> delegateClass) {
+        if (delegateClass == type) {
+            return EXACT;
+        }
+        return type.isAssignableFrom(delegateClass) ? SUBCLASS : STRUCTURAL;
+    }
+
+    /**
+     * Tells whether a slot holds one of the planned methods
+     *
+     * @param slot the slot of the called method
+     * @return {@code true} if the plan knows about the slot, whether a delegate
+     * answers it or not
+     */
+    boolean covers(final int slot) {
+        return slot < slots.length && slots[slot] != null;
+    }
+
+    /**
+     * Returns the index of the delegate that answers a slot
+     *
+     * @param slot a slot {@linkplain #covers(int) covered} by this plan
+     * @return the index of the delegate, -1 if none of the delegates answers
+     * it, or less than that if the proxy answers it itself
+     */
+    int delegate(final int slot) {
+        return delegates[slot];
+    }
+
+    /**
+     * Tells which method a slot that the proxy answers itself holds
+     *
+     * @param delegate the value of {@link #delegate(int)} for the slot, less than -1
+     * @return one of {@link ObjectMethods#EQUALS}, {@link ObjectMethods#HASH_CODE}
+     * and {@link ObjectMethods#TO_STRING}
+     */
+    static int objectMethod(final int delegate) {
+        return -1 - delegate;
+    }
+
+    /**
+     * Calls the planned method for a slot
+     *
+     * @param slot a slot answered by one of the delegates
+     * @param delegates the delegates, in the order this plan was computed for
+     * @param args the method arguments
+     * @return the method's result
+     * @throws Throwable whatever the called method throws
+     */
+    Object invoke(final int slot, final Object[] delegates, final Object[] args) throws Throwable {
+        return invokers[slot].invoke(delegates[this.delegates[slot]], args);
+    }
+}
@@ -1,9 +1,7 @@
 package ducktype;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Method;
-import net.sf.cglib.proxy.Enhancer;
-import net.sf.cglib.proxy.MethodInterceptor;
-import net.sf.cglib.proxy.MethodProxy;
 
 /**
  * In computer programming with object-oriented programming languages, duck
@@ -34,23 +32,434 @@ import net.sf.cglib.proxy.MethodProxy;
  */
 public class DuckType {
 
-    private static final class DuckTypeMethodInterceptor implements MethodInterceptor {
+    static final class DuckTypeMethodInterceptor implements Interceptor {
 
         private final Object wrapped;
+        private final Invoker[] table;
+        private final MethodIndex index;
 
-        DuckTypeMethodInterceptor(final Object wrapped) {
+        DuckTypeMethodInterceptor(final Object wrapped, final Invoker[] table, final MethodIndex index) {
             this.wrapped = wrapped;
+            this.table = table;
+            this.index = index;
         }
 
         @Override
-        public Object intercept(final Object o, final Method method, final Object[] os, final MethodProxy mp) throws Throwable {
+        public Object intercept(final Object o, final Method method, final int slot, final Object[] os) throws Throwable {
+            if (slot < table.length) {
+                final Invoker invoker = table[slot];
+                if (invoker != null) {
+                    return invoker.invoke(wrapped, os);
+                }
+            }
+
+            // not one of the methods we adapt up front, eg. a protected method
+            final Class<?>[] parameterTypes = method.getParameterTypes();
+            final Invoker invoker = index.find(method.getName(), parameterTypes);
+            if (invoker == null) {
+                throw new NoSuchMethodError(index.describe(method.getName(), parameterTypes));
+            }
+            return invoker.invoke(wrapped, os);
+        }
+    }
+
+    /**
+     * Answers {@code equals} for the target: intercepted proxies of equal
+     * targets are equal, and a proxy is never equal to an object that isn't
+     * one, not even its own target, since the target wouldn't return the favor
+     */
+    private static final Invoker EQUALS = new Invoker() {
+        @Override
+        public Object invoke(final Object target, final Object[] args) {
+            final Object other = interceptedTargetOf(args[0]);
+            return other != null && target.equals(other);
+        }
+    };
+
+    /**
+     * Returns the target of a proxy that answers {@code equals} with
+     * {@link #EQUALS}, or {@code null}
+     */
+    private static Object interceptedTargetOf(final Object o) {
+        final Interceptor interceptor = o == null ? null : Enhancers.interceptorOf(o);
+        if (interceptor instanceof DuckTypeMethodInterceptor) {
+            return ((DuckTypeMethodInterceptor) interceptor).wrapped;
+        }
+        return interceptor == null ? null : Rebindable.targetOf(interceptor);
+    }
+
+    /**
+     * Answers {@code hashCode} for the target, without reflection
+     */
+    private static final Invoker HASH_CODE = new Invoker() {
+        @Override
+        public Object invoke(final Object target, final Object[] args) {
+            return target.hashCode();
+        }
+    };
+
+    /**
+     * Answers {@code toString} for the target, without reflection
+     */
+    private static final Invoker TO_STRING = new Invoker() {
+        @Override
+        public Object invoke(final Object target, final Object[] args) {
+            return target.toString();
+        }
+    };
+
+    /**
+     * Returns the invoker that answers {@code equals}, {@code hashCode} or
+     * {@code toString} for the target
+     *
+     * @param method a proxied method
+     * @return the invoker, or {@code null} if the method is none of those
+     */
+    static Invoker objectMethodInvoker(final Method method) {
+        switch (ObjectMethods.kind(method)) {
+            case ObjectMethods.EQUALS:
+                return EQUALS;
+            case ObjectMethods.HASH_CODE:
+                return HASH_CODE;
+            case ObjectMethods.TO_STRING:
+                return TO_STRING;
+            default:
+                return null;
+        }
+    }
+
+    private static abstract class AbstractAdapter<T> implements Adapter<T> {
+
+        final Class<?> targetClass;
+
+        AbstractAdapter(final Class<?> targetClass) {
+            this.targetClass = targetClass;
+        }
+
+        @Override
+        public final T wrap(final Object target) {
+            if (target == null || target.getClass() != targetClass) {
+                if (!targetClass.isInstance(target)) {
+                    throw new IllegalArgumentException("not an instance of " + targetClass.getName() + ": " + target);
+                }
+                return wrapSubclass(target);
+            }
+            return create(target);
+        }
+
+        abstract T create(Object target);
+
+        /**
+         * Wraps an instance of a strict subclass, or implementation, of the
+         * target class, which may have methods that the target class lacks
+         */
+        T wrapSubclass(final Object target) {
+            return create(target);
+        }
+    }
+
+    private static class InterceptingAdapter<T> extends AbstractAdapter<T> {
+
+        final Class<T> type;
+        private final Linkage linkage;
+        final Backend backend;
+        private final Enhancers.ProxyClass proxyClass;
+        final Invoker[] table;
+        private final MethodIndex index;
+
+        InterceptingAdapter(final Class<?> targetClass, final Class<T> type, final Linkage linkage, final Backend backend) {
+            super(targetClass);
+            this.type = type;
+            this.linkage = linkage;
+            this.backend = backend;
+            this.proxyClass = Enhancers.proxyClass(backend, type);
+            this.index = MethodIndex.of(targetClass, linkage);
+
+            final Method[] slots = proxyClass.slots();
+            this.table = new Invoker[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] != null) {
+                    table[i] = bind(slots[i]);
+                }
+            }
+        }
+
+        private Invoker bind(final Method method) {
+            final Invoker objectMethod = objectMethodInvoker(method);
+            return objectMethod != null ? objectMethod : index.bind(method.getName(), method.getParameterTypes());
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        T create(final Object target) {
+            return (T) proxyClass.newInstance(new DuckTypeMethodInterceptor(target, table, index));
+        }
+
+        @Override
+        T wrapSubclass(final Object target) {
+            // the table is linked against the methods of the target class only
+            return adapterFor(target.getClass(), type, linkage, backend).wrap(target);
+        }
+    }
+
+    /**
+     * Intercepts calls at first, and compiles an adapter class once the proxies
+     * it has created have been called often enough, see {@link Linkage#TIERED}
+     */
+    private static final class TieredAdapter<T> extends InterceptingAdapter<T> {
+
+        /**
+         * Counts the calls made through the intercepted proxies of an adapter
+         */
+        private static final class CountingInvoker implements Invoker {
+
+            private final TieredAdapter<?> adapter;
+            private final Invoker invoker;
+
+            CountingInvoker(final TieredAdapter<?> adapter, final Invoker invoker) {
+                this.adapter = adapter;
+                this.invoker = invoker;
+            }
+
+            @Override
+            public Object invoke(final Object target, final Object[] args) throws Throwable {
+                if (adapter.calls < adapter.threshold) {
+                    adapter.calls++;
+                }
+                return invoker.invoke(target, args);
+            }
+        }
+
+        private final int threshold;
+        /**
+         * Counted without synchronization: racing calls may be lost, which
+         * merely delays the compilation
+         */
+        private int calls;
+        /**
+         * The compiled adapter, or this adapter if none can be compiled, once
+         * the threshold has been reached
+         */
+        private volatile AbstractAdapter<T> compiled;
+
+        TieredAdapter(final Class<?> targetClass, final Class<T> type, final Backend backend, final int threshold) {
+            super(targetClass, type, Linkage.TIERED, backend);
+            this.threshold = threshold;
+            for (int i = 0; i < table.length; i++) {
+                if (table[i] != null) {
+                    table[i] = new CountingInvoker(this, table[i]);
+                }
+            }
+        }
+
+        @Override
+        T create(final Object target) {
+            AbstractAdapter<T> adapter = compiled;
+            if (adapter == null) {
+                if (calls < threshold) {
+                    return super.create(target);
+                }
+                adapter = compile();
+            }
+            return adapter == this ? super.create(target) : adapter.create(target);
+        }
+
+        private synchronized AbstractAdapter<T> compile() {
+            if (compiled == null) {
+                final MethodHandle constructor = AdapterGenerator.compile(type, targetClass);
+                compiled = constructor != null ? new CompiledAdapter<>(targetClass, type, backend, constructor) : this;
+            }
+            return compiled;
+        }
+    }
+
+    /**
+     * Adapts objects that already are instances of the requested type
+     */
+    private static final class IdentityAdapter<T> extends AbstractAdapter<T> {
+
+        IdentityAdapter(final Class<?> targetClass) {
+            super(targetClass);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        T create(final Object target) {
+            return (T) target;
+        }
+    }
+
+    /**
+     * Adapts proxies, and Mixins, by adapting what they stand for
+     */
+    private static final class UnwrappingAdapter<T> extends AbstractAdapter<T> {
+
+        private final Class<T> type;
+
+        UnwrappingAdapter(final Class<?> targetClass, final Class<T> type) {
+            super(targetClass);
+            this.type = type;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        T create(final Object target) {
+            final Object unwrapped = unwrap(target);
+            if (unwrapped instanceof Mixin) {
+                return ((Mixin) unwrapped).asA(type);
+            }
+            return asA(unwrapped, type);
+        }
+    }
+
+    private static final class CompiledAdapter<T> extends AbstractAdapter<T> {
+
+        private final Class<T> type;
+        private final Backend backend;
+        private final MethodHandle constructor;
+
+        CompiledAdapter(final Class<?> targetClass, final Class<T> type, final Backend backend, final MethodHandle constructor) {
+            super(targetClass);
+            this.type = type;
+            this.backend = backend;
+            this.constructor = constructor;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        T create(final Object target) {
             try {
-                final Method proxy = wrapped.getClass().getMethod(method.getName(), method.getParameterTypes());
-                return proxy.invoke(wrapped, os);
-            } catch (NoSuchMethodException nsme) {
-                throw new NoSuchMethodError(nsme.getMessage());
+                return (T) (Object) constructor.invokeExact(target);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+
+        @Override
+        T wrapSubclass(final Object target) {
+            // the adapter class only calls the methods of the target class
+            return adapterFor(target.getClass(), type, Linkage.COMPILED, backend).wrap(target);
+        }
+    }
+
+    private static volatile ProxyCache proxyCache = proxyCacheOfSize(Integer.getInteger("ducktype.proxyCacheSize", 0));
+
+    private static ProxyCache proxyCacheOfSize(final int size) {
+        return size > 0 ? new ProxyCache(size) : null;
+    }
+
+    private static final int BACKENDS = Backend.values().length;
+
+    /**
+     * Adapters, by target class, then by linkage and backend, and then by
+     * requested type. Each target class remembers a bounded number of
+     * requested types, so that a long-lived class doesn't pin the adapters, and
+     * the types, of every tenant it was ever adapted to.
+     */
+    private static final ClassValue<BoundedCache<Class<?>, Adapter<?>>[]> ADAPTERS = new ClassValue<BoundedCache<Class<?>, Adapter<?>>[]>() {
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        protected BoundedCache<Class<?>, Adapter<?>>[] computeValue(final Class<?> targetClass) {
+            final BoundedCache<Class<?>, Adapter<?>>[] adapters = new BoundedCache[Linkage.values().length * BACKENDS];
+            for (int i = 0; i < adapters.length; i++) {
+                adapters[i] = new BoundedCache<>();
+            }
+            return adapters;
+        }
+    };
+
+    /**
+     * Returns a reusable adapter that duck types instances of a class
+     *
+     * <p>The adapter is created and linked once, according to the
+     * {@linkplain Linkage#getDefault() default linkage} and
+     * {@linkplain Backend#getDefault() backend}, and then cached, so
+     * this is a cheap way of wrapping many objects of the same class in a hot
+     * loop. Each class remembers the adapters of at most 256 requested types,
+     * or as many as the {@code ducktype.generatedCacheSize} system property
+     * says, and forgets the oldest ones beyond that.</p>
+     *
+     * <p>If the class already is a subclass or an implementation of the
+     * requested type, the adapter returns the objects themselves. If the class
+     * is a proxy class, or {@code Mixin}, the adapter adapts what each object
+     * {@linkplain #unwrap(Object) stands for} instead.</p>
+     *
+     * @param <T> The class you want the objects to be treated as
+     * @param targetClass the class of the objects you want to duck type
+     * @param c The class you want the objects to be treated as
+     * @return a thread-safe adapter
+     */
+    public static <T> Adapter<T> adapterFor(final Class<?> targetClass, final Class<T> c) {
+        return adapterFor(targetClass, c, Linkage.getDefault(), Backend.getDefault());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Adapter<T> adapterFor(final Class<?> targetClass, final Class<T> c, final Linkage linkage, final Backend backend) {
+        final BoundedCache<Class<?>, Adapter<?>> adapters = ADAPTERS.get(targetClass)[linkage.ordinal() * BACKENDS + backend.ordinal()];
+        final Adapter<?> adapter = adapters.get(c);
+        return (Adapter<T>) (adapter != null ? adapter : adapters.putIfAbsent(c, createAdapter(targetClass, c, linkage, backend)));
+    }
+
+    /**
+     * Returns a new adapter that duck types objects of any class
+     *
+     * <p>Use this rather than {@link #adapterFor(Class, Class)} when the
+     * objects to wrap come in a mix of classes. The adapter is linked
+     * according to the {@linkplain Linkage#getDefault() default linkage},
+     * except that {@link Linkage#COMPILED} is linked as
+     * {@link Linkage#FAST_CLASS}. Create it once, and reuse it: its inline
+     * caches are per adapter.</p>
+     *
+     * @param <T> The class you want the objects to be treated as
+     * @param c The class you want the objects to be treated as
+     * @param cacheSize the most target classes each method should remember
+     * before falling back to a lookup per call
+     * @return a thread-safe adapter
+     * @throws IllegalArgumentException if the cache size is negative
+     */
+    public static <T> PolymorphicAdapter<T> polymorphicAdapterFor(final Class<T> c, final int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("cacheSize: " + cacheSize);
+        }
+        return new PolymorphicAdapter<>(c, Linkage.getDefault(), cacheSize);
+    }
+
+    /**
+     * Returns a new proxy whose target can be swapped
+     *
+     * <p>Use this instead of {@link #asA(Object, Class)} to make a few calls on
+     * each object of a batch without allocating a proxy per object. The proxy
+     * is linked according to the {@linkplain Linkage#getDefault() default
+     * linkage}, except that {@link Linkage#COMPILED} is linked as
+     * {@link Linkage#FAST_CLASS}.</p>
+     *
+     * @param <T> The class you want the objects to be treated as
+     * @param c The class you want the objects to be treated as
+     * @return an unbound, single-threaded proxy
+     */
+    public static <T> Rebindable<T> rebindable(final Class<T> c) {
+        return new Rebindable<>(c, Linkage.getDefault());
+    }
+
+    private static <T> Adapter<T> createAdapter(final Class<?> targetClass, final Class<T> c, final Linkage linkage, final Backend backend) {
+        if (c.isAssignableFrom(targetClass)) {
+            return new IdentityAdapter<>(targetClass);
+        }
+        if (targetClass == Mixin.class || Enhancers.isProxyClass(targetClass) || Enhancers.isAdapterClass(targetClass)) {
+            return new UnwrappingAdapter<>(targetClass, c);
+        }
+        if (linkage == Linkage.COMPILED) {
+            final MethodHandle constructor = AdapterGenerator.compile(c, targetClass);
+            if (constructor != null) {
+                return new CompiledAdapter<>(targetClass, c, backend, constructor);
             }
         }
+        if (linkage == Linkage.TIERED) {
+            return new TieredAdapter<>(targetClass, c, backend, Linkage.getTierUpThreshold());
+        }
+        return new InterceptingAdapter<>(targetClass, c, linkage, backend);
     }
 
     /**
@@ -61,6 +470,27 @@ public class DuckType {
      *
      * <p>If you attempt to access a method that isn't implemented by "o", the
      * JVM will throw a NoSuchMethodError exception at runtime.</p>
+     *
+     * <p>The returned object's {@code equals}, {@code hashCode} and
+     * {@code toString} methods are those of "o", except that the returned
+     * object is only ever equal to other such objects: objects returned for
+     * equal objects (with the same type and linkage) are equal, but none is
+     * equal to "o" itself, which keeps {@code equals} symmetric.</p>
+     *
+     * <p>If "o" already is an instance of the requested type, it is returned
+     * as is. If "o" is a proxy, the object it {@linkplain #unwrap(Object)
+     * stands for} is adapted instead, so that proxies never wrap proxies: a
+     * {@link Mixin} proxy is turned into the Mixin's proxy for the requested
+     * type. These decisions are made once per class, by the cached
+     * adapter.</p>
+     *
+     * <p>If a {@linkplain #setProxyCache(ProxyCache) proxy cache} is
+     * installed, wrapping the same object as the same type again returns the
+     * same proxy, for as long as it is in use.</p>
+     *
+     * <p>How calls reach "o" depends on the {@linkplain Linkage#getDefault()
+     * default linkage}. The proxy is created by a cached {@link Adapter}, see
+     * {@link #adapterFor(Class, Class)}.</p>
      * 
      * @param <T> The class you want this object to be treated as
      * @param o The object you want to duck type
@@ -68,7 +498,73 @@ public class DuckType {
      * @return "o", interpreted as the requested type
      */
     public static <T> T asA(final Object o, final Class<T> c) {
-        return (T) Enhancer.create(c, new DuckTypeMethodInterceptor(o));
+        final ProxyCache cache = proxyCache;
+        return cache != null ? cache.asA(o, c) : adapterFor(o.getClass(), c).wrap(o);
+    }
+
+    /**
+     * Returns the cache that {@link #asA(Object, Class)} remembers its proxies in
+     *
+     * <p>There is no cache unless one is installed with
+     * {@link #setProxyCache(ProxyCache)}, or sized with the
+     * {@code ducktype.proxyCacheSize} system property.</p>
+     *
+     * @return the installed cache, or {@code null} if there is none
+     */
+    public static ProxyCache getProxyCache() {
+        return proxyCache;
+    }
+
+    /**
+     * Installs the cache that {@link #asA(Object, Class)} remembers its proxies in
+     *
+     * @param cache the cache, or {@code null} to stop caching proxies
+     */
+    public static void setProxyCache(final ProxyCache cache) {
+        proxyCache = cache;
+    }
+
+    /**
+     * Returns the object behind a proxy
+     *
+     * <p>Proxies returned by {@link #asA(Object, Class)} and by
+     * {@linkplain #adapterFor(Class, Class) adapters} stand for their target,
+     * {@linkplain #rebindable(Class) rebindable} proxies for their current one,
+     * and proxies returned by {@link Mixin#asA(Class)} stand for their
+     * {@code Mixin}. Any other object stands for itself.</p>
+     *
+     * @param o any object
+     * @return the object "o" stands for
+     */
+    public static Object unwrap(final Object o) {
+        Object current = o;
+        while (true) {
+            final Object next = proxiedBy(current);
+            if (next == current) {
+                return current;
+            }
+            current = next;
+        }
+    }
+
+    private static Object proxiedBy(final Object o) {
+        if (o == null) {
+            return null;
+        }
+        final Interceptor interceptor = Enhancers.interceptorOf(o);
+        if (interceptor != null) {
+            if (interceptor instanceof DuckTypeMethodInterceptor) {
+                return ((DuckTypeMethodInterceptor) interceptor).wrapped;
+            }
+            final Mixin mixin = Mixin.mixinOf(interceptor);
+            if (mixin != null) {
+                return mixin;
+            }
+            final Object target = Rebindable.targetOf(interceptor);
+            return target != null ? target : o;
+        }
+        final Object adaptee = Enhancers.adapteeOf(o);
+        return adaptee != null ? adaptee : o;
     }
 
     public static void main(final String[] args) {
@@ -0,0 +1,448 @@
+package ducktype;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Creates the proxy classes that intercepted proxies are made from
+ *
+ * <p>There is one proxy class per requested type and {@link Backend}, shared
+ * by {@link DuckType} and {@link Mixin}, and created the first time the type
+ * is requested. Composite proxies, which implement several types at once, have
+ * one proxy class per set of types, see {@link #proxyClass(Class[])}.</p>
+ *
+ * <p>This class also keeps track of the direct-call adapters generated by
+ * {@link AdapterGenerator}, so that proxies and adapters can be recognized
+ * without loading any code generator.</p>
+ *
+ * <p>Nothing here refers to a generated class from a static field: every
+ * cache and registry hangs off one of the classes involved, through a
+ * {@link ClassValue}, so generated classes can be unloaded together with the
+ * classes they were generated for.</p>
+ */
+final class Enhancers {
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ClassValue<ProxyClass>[] PROXY_CLASSES = new ClassValue[Backend.values().length];
+
+    /**
+     * The proxy classes of composite proxies, by their first type, then by
+     * backend, and then by their canonical list of types, and by every list of
+     * types they have been requested with
+     */
+    private static final ClassValue<BoundedCache<List<Class<?>>, ProxyClass>[]> COMPOSITE_PROXY_CLASSES = new ClassValue<BoundedCache<List<Class<?>>, ProxyClass>[]>() {
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        protected BoundedCache<List<Class<?>>, ProxyClass>[] computeValue(final Class<?> type) {
+            final BoundedCache<List<Class<?>>, ProxyClass>[] composites = new BoundedCache[PROXY_CLASSES.length];
+            for (int i = 0; i < composites.length; i++) {
+                composites[i] = new BoundedCache<>();
+            }
+            return composites;
+        }
+    };
+
+    static {
+        for (final Backend backend : Backend.values()) {
+            PROXY_CLASSES[backend.ordinal()] = new ClassValue<ProxyClass>() {
+                @Override
+                protected ProxyClass computeValue(final Class<?> type) {
+                    return define(backend, new Class<?>[]{type});
+                }
+            };
+        }
+    }
+
+    /**
+     * Orders the interfaces of a composite proxy, so that every permutation of
+     * a set of types maps to the same proxy class
+     */
+    private static final Comparator<Class<?>> BY_NAME = new Comparator<Class<?>>() {
+        @Override
+        public int compare(final Class<?> a, final Class<?> b) {
+            return a.getName().compareTo(b.getName());
+        }
+    };
+
+    /**
+     * What a generated class is: the proxy class it was created for, or the
+     * getter of what an adapter adapts
+     */
+    private static final class Generated {
+
+        final ProxyClass proxyClass;
+        final MethodHandle adaptee;
+
+        Generated(final ProxyClass proxyClass, final MethodHandle adaptee) {
+            this.proxyClass = proxyClass;
+            this.adaptee = adaptee;
+        }
+    }
+
+    private static final Generated NOT_GENERATED = new Generated(null, null);
+
+    /**
+     * Generated classes on their way into {@link #GENERATED}
+     */
+    private static final ConcurrentMap<Class<?>, Generated> REGISTERING = new ConcurrentHashMap<>();
+
+    /**
+     * Tells what any class is, see {@link #interceptorOf(Object)} and
+     * {@link #adapteeOf(Object)}. Held by each class itself, so the registry
+     * doesn't keep generated classes alive.
+     */
+    private static final ClassValue<Generated> GENERATED = new ClassValue<Generated>() {
+        @Override
+        protected Generated computeValue(final Class<?> c) {
+            final Generated generated = REGISTERING.remove(c);
+            return generated != null ? generated : NOT_GENERATED;
+        }
+    };
+
+    /**
+     * The proxy class for one requested type, or one set of requested types
+     *
+     * <p>Each {@link Backend} has its own kind of proxy class. They all
+     * forward the calls made on their proxies to an {@link Interceptor}.</p>
+     */
+    static abstract class ProxyClass {
+
+        private final Class<?>[] types;
+
+        /**
+         * @param types the requested types: any number of interfaces, and at
+         * most one class, which must come first
+         */
+        ProxyClass(final Class<?>[] types) {
+            this.types = types;
+        }
+
+        /**
+         * Returns the requested types
+         *
+         * @return the types, the class first if there is one. Must not be
+         * modified.
+         */
+        final Class<?>[] types() {
+            return types;
+        }
+
+        /**
+         * Lists the methods of the requested types by the slot their proxy
+         * method occupies
+         *
+         * <p>The slot of a proxied method is passed to the
+         * {@link Interceptor} of each call, so an interceptor can find
+         * per-method data with a single array load instead of looking the
+         * method up by name and parameter types.</p>
+         *
+         * @return the proxied methods, indexed by slot. Slots that don't
+         * correspond to an adapted method of the requested types are
+         * {@code null}. Must not be modified.
+         */
+        abstract Method[] slots();
+
+        /**
+         * Creates a new proxy
+         *
+         * @param interceptor the interceptor of the new proxy
+         * @return the new proxy
+         */
+        abstract Object newInstance(Interceptor interceptor);
+
+        /**
+         * Returns the interceptor of a proxy of this class
+         */
+        abstract Interceptor interceptorOf(Object proxy);
+
+        /**
+         * Returns the requested type that a proxied method belongs to
+         *
+         * <p>Dispatch plans rank the delegates of each method against this
+         * type, so that each of the types of a composite proxy prefers its own
+         * implementations, just like separate proxies would.</p>
+         *
+         * @param method a method of the proxy
+         * @return the first requested type that has the method
+         */
+        final Class<?> typeOf(final Method method) {
+            if (types.length != 1) {
+                final Class<?> declaringClass = method.getDeclaringClass();
+                for (Class<?> type : types) {
+                    if (declaringClass.isAssignableFrom(type)) {
+                        return type;
+                    }
+                }
+            }
+            return types[0];
+        }
+
+        /**
+         * Records a generated class, so that its proxies are recognized
+         */
+        final void register(final Class<?> generated) {
+            Enhancers.register(generated, new Generated(this, null));
+        }
+    }
+
+    private Enhancers() {
+    }
+
+    private static void register(final Class<?> c, final Generated generated) {
+        REGISTERING.put(c, generated);
+        GENERATED.remove(c);
+        GENERATED.get(c);
+    }
+
+    private static ProxyClass define(final Backend backend, final Class<?>[] types) {
+        final ProxyClass proxyClass = backend.define(types);
+        if (proxyClass != null) {
+            return proxyClass;
+        }
+        return types.length == 1 ? proxyClass(Backend.CGLIB, types[0]) : composite(Backend.CGLIB, Arrays.asList(types));
+    }
+
+    /**
+     * Returns the proxy class for a type, from the default backend
+     *
+     * @param type the class or interface to proxy
+     * @return the shared proxy class
+     */
+    static ProxyClass proxyClass(final Class<?> type) {
+        return proxyClass(Backend.getDefault(), type);
+    }
+
+    /**
+     * Returns the proxy class for a type
+     *
+     * @param backend the backend to generate the class with
+     * @param type the class or interface to proxy
+     * @return the shared proxy class
+     */
+    static ProxyClass proxyClass(final Backend backend, final Class<?> type) {
+        return PROXY_CLASSES[backend.ordinal()].get(type);
+    }
+
+    /**
+     * Returns the proxy class that implements several types at once, from the
+     * default backend
+     *
+     * @see #proxyClass(Backend, Class[])
+     */
+    static ProxyClass proxyClass(final Class<?>... types) {
+        return proxyClass(Backend.getDefault(), types);
+    }
+
+    /**
+     * Returns the proxy class that implements several types at once
+     *
+     * <p>The order of the types doesn't matter, and duplicates are ignored.
+     * Any permutation of the same types returns the same proxy class, and a
+     * single type returns the same proxy class as
+     * {@link #proxyClass(Backend, Class)}.</p>
+     *
+     * @param backend the backend to generate the class with
+     * @param types interfaces, and at most one class
+     * @return the shared proxy class
+     * @throws IllegalArgumentException if there are no types, or more than one class
+     */
+    static ProxyClass proxyClass(final Backend backend, final Class<?>... types) {
+        final BoundedCache<List<Class<?>>, ProxyClass> requested = types.length == 0 ? null : COMPOSITE_PROXY_CLASSES.get(types[0])[backend.ordinal()];
+        final ProxyClass known = requested == null ? null : requested.get(Arrays.asList(types));
+        if (known != null) {
+            return known;
+        }
+        Class<?> superclass = null;
+        final List<Class<?>> interfaces = new ArrayList<>();
+        for (Class<?> type : types) {
+            if (type.isInterface()) {
+                if (!interfaces.contains(type)) {
+                    interfaces.add(type);
+                }
+            } else if (superclass == null || superclass == type) {
+                superclass = type;
+            } else {
+                throw new IllegalArgumentException("more than one class: " + superclass.getName() + ", " + type.getName());
+            }
+        }
+        Collections.sort(interfaces, BY_NAME);
+        final List<Class<?>> key = new ArrayList<>(interfaces.size() + 1);
+        if (superclass != null) {
+            key.add(superclass);
+        }
+        key.addAll(interfaces);
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("no types");
+        }
+        if (key.size() == 1) {
+            return proxyClass(backend, key.get(0));
+        }
+        final ProxyClass proxyClass = composite(backend, key);
+        // so that the next request in the same order skips canonicalizing
+        requested.putIfAbsent(Arrays.<Class<?>>asList(types.clone()), proxyClass);
+        return proxyClass;
+    }
+
+    /**
+     * Returns the proxy class for a canonical list of several types
+     */
+    private static ProxyClass composite(final Backend backend, final List<Class<?>> key) {
+        final BoundedCache<List<Class<?>>, ProxyClass> composites = COMPOSITE_PROXY_CLASSES.get(key.get(0))[backend.ordinal()];
+        final ProxyClass proxyClass = composites.get(key);
+        return proxyClass != null ? proxyClass : composites.putIfAbsent(key, define(backend, key.toArray(new Class<?>[key.size()])));
+    }
+
+    /**
+     * Returns the interceptor of a proxy
+     *
+     * @param o any object
+     * @return the interceptor, or {@code null} if the object wasn't created by
+     * a {@link ProxyClass}
+     */
+    static Interceptor interceptorOf(final Object o) {
+        final ProxyClass proxyClass = GENERATED.get(o.getClass()).proxyClass;
+        return proxyClass != null ? proxyClass.interceptorOf(o) : null;
+    }
+
+    /**
+     * Tells whether a class was created by a {@link ProxyClass}
+     */
+    static boolean isProxyClass(final Class<?> c) {
+        return GENERATED.get(c).proxyClass != null;
+    }
+
+    /**
+     * Records a generated adapter class
+     *
+     * @param adapter the adapter class
+     * @param getter a handle of type {@code (Object)Object} that returns what
+     * an adapter adapts
+     */
+    static void registerAdapter(final Class<?> adapter, final MethodHandle getter) {
+        register(adapter, new Generated(null, getter));
+    }
+
+    /**
+     * Tells whether a class is a generated adapter
+     */
+    static boolean isAdapterClass(final Class<?> c) {
+        return GENERATED.get(c).adaptee != null;
+    }
+
+    /**
+     * Returns what a generated adapter adapts
+     *
+     * @param o any object
+     * @return the target of a {@link DuckType} adapter, the {@link Mixin} of a
+     * mixin adapter, or {@code null} if the object isn't a generated adapter
+     */
+    static Object adapteeOf(final Object o) {
+        final MethodHandle getter = GENERATED.get(o.getClass()).adaptee;
+        if (getter == null) {
+            return null;
+        }
+        try {
+            return (Object) getter.invokeExact(o);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Finds a class loader that sees all the requested types
+     *
+     * @param types the requested types
+     * @return the loader of one of the types, or of this library, or
+     * {@code null} if none of them sees all the types
+     */
+    static ClassLoader loaderFor(final Class<?>[] types) {
+        for (Class<?> type : types) {
+            if (type.getClassLoader() != null && seesAll(type.getClassLoader(), types)) {
+                return type.getClassLoader();
+            }
+        }
+        final ClassLoader own = Enhancers.class.getClassLoader();
+        return seesAll(own, types) ? own : null;
+    }
+
+    /**
+     * Tells whether a class loader resolves the names of classes to those
+     * very classes
+     */
+    static boolean seesAll(final ClassLoader loader, final Class<?>[] types) {
+        for (Class<?> type : types) {
+            try {
+                if (Class.forName(type.getName(), false, loader) != type) {
+                    return false;
+                }
+            } catch (ClassNotFoundException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lists the adapted methods of the requested types, each in its own slot
+     */
+    static Method[] denseSlots(final Class<?>[] types) {
+        final List<Method> slots = new ArrayList<>();
+        for (Method method : adaptedMethods(types)) {
+            slots.add(method);
+        }
+        return slots.toArray(new Method[slots.size()]);
+    }
+
+    /**
+     * Lists the overridable public methods of one or more types, keyed by
+     * name and descriptor so that covariant overloads each get their own
+     * bridge, and methods shared by several types are listed once
+     */
+    static Iterable<Method> adaptedMethods(final Class<?>... types) {
+        final Map<String, Method> methods = new LinkedHashMap<>();
+        boolean interfaces = true;
+        for (Class<?> type : types) {
+            addOverridable(type, methods);
+            interfaces &= type.isInterface();
+        }
+        if (interfaces) {
+            addOverridable(Object.class, methods);
+        }
+        return methods.values();
+    }
+
+    private static void addOverridable(final Class<?> type, final Map<String, Method> methods) {
+        for (Method method : type.getMethods()) {
+            final int modifiers = method.getModifiers();
+            if (!Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers)) {
+                final String key = keyOf(method);
+                if (!methods.containsKey(key)) {
+                    methods.put(key, method);
+                }
+            }
+        }
+    }
+
+    /**
+     * Identifies a method by its name, parameter types and return type
+     */
+    static String keyOf(final Method method) {
+        final StringBuilder key = new StringBuilder(method.getName()).append('(');
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            key.append(parameterType.getName()).append(';');
+        }
+        return key.append(')').append(method.getReturnType().getName()).toString();
+    }
+}
@@ -0,0 +1,80 @@
+package ducktype;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import net.sf.cglib.reflect.FastClass;
+
+/**
+ * Calls a method through a cglib {@link FastClass}
+ *
+ * <p>A fast class is generated once per target class, and dispatches on a
+ * method index with a {@code switch} statement that calls the target method
+ * directly. The index is resolved when the invoker is linked, so calls don't
+ * involve any reflection.</p>
+ */
+final class FastClassInvoker implements Invoker {
+
+    private static final ClassValue<FastClass> FAST_CLASSES = new ClassValue<FastClass>() {
+        @Override
+        protected FastClass computeValue(final Class<?> type) {
+            final FastClass.Generator generator = new FastClass.Generator();
+            generator.setType(type);
+            // cached here, with the class; cglib's own cache would keep the
+            // class, and its class loader, forever
+            generator.setUseCache(false);
+            return generator.create();
+        }
+    };
+
+    private final FastClass fastClass;
+    private final int index;
+
+    private FastClassInvoker(final FastClass fastClass, final int index) {
+        this.fastClass = fastClass;
+        this.index = index;
+    }
+
+    /**
+     * Links a method of a class to a fast class invoker
+     *
+     * @param type the class the method will be called on
+     * @param method the method to link
+     * @return the invoker, or a reflective invoker if cglib can't generate a
+     * fast class that reaches the method
+     */
+    static Invoker link(final Class<?> type, final Method method) {
+        final Invoker invoker = tryLink(type, method);
+        // method handles are slower than reflection behind an interceptor
+        return invoker != null ? invoker : new ReflectiveInvoker(method);
+    }
+
+    /**
+     * Links a method of a class to a fast class invoker, if possible
+     *
+     * @param type the class the method will be called on
+     * @param method the method to link
+     * @return the invoker, or {@code null} if cglib can't generate a fast
+     * class that reaches the method
+     */
+    private static Invoker tryLink(final Class<?> type, final Method method) {
+        try {
+            final FastClass fastClass = FAST_CLASSES.get(type);
+            final int index = fastClass.getIndex(method.getName(), method.getParameterTypes());
+            if (index >= 0) {
+                return new FastClassInvoker(fastClass, index);
+            }
+        } catch (RuntimeException | LinkageError e) {
+            // eg. a class loader that can't see cglib
+        }
+        return null;
+    }
+
+    @Override
+    public Object invoke(final Object target, final Object[] args) throws Throwable {
+        try {
+            return fastClass.invoke(index, target, args);
+        } catch (InvocationTargetException ite) {
+            throw ite.getCause();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package ducktype;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import net.sf.cglib.asm.ClassWriter;
+import net.sf.cglib.asm.Type;
+import net.sf.cglib.core.ClassEmitter;
+import net.sf.cglib.core.CodeEmitter;
+import net.sf.cglib.core.Constants;
+import net.sf.cglib.core.ReflectUtils;
+import net.sf.cglib.core.Signature;
+import net.sf.cglib.core.TypeUtils;
+
+/**
+ * A hidden proxy class, see {@link Backend#HIDDEN_CLASS}
+ *
+ * <p>The class is generated in this package, and defined as a hidden class
+ * through {@code Lookup.defineHiddenClass}, which is looked up reflectively so
+ * that this library still runs on JVMs that don't have it. Each method loads
+ * the proxy's interceptor from a final field, and passes it the method's slot
+ * as a constant:</p>
+ *
+ * <pre>
+ * public long add(int x) {
+ *     return (Long) interceptor.intercept(this, METHODS[3], 3, new Object[]{x});
+ * }
+ * </pre>
+ *
+ * <p>Unlike the classes of the other backends, a hidden class isn't tied to a
+ * class loader, and can be unloaded on its own once nothing refers to it.</p>
+ */
+final class HiddenProxyClass extends Enhancers.ProxyClass {
+
+    private static final String CLASS_NAME = HiddenProxyClass.class.getPackage().getName() + ".HiddenProxy";
+    private static final String INTERCEPTOR_FIELD = "interceptor";
+    private static final String METHODS_FIELD = "METHODS";
+    private static final Type INTERCEPTOR = Type.getType(Interceptor.class);
+    private static final Type METHOD_ARRAY = Type.getType(Method[].class);
+    private static final Signature INTERCEPT = TypeUtils.parseSignature("Object intercept(Object, java.lang.reflect.Method, int, Object[])");
+    private static final Signature CONSTRUCTOR = new Signature(Constants.CONSTRUCTOR_NAME, Type.VOID_TYPE, new Type[]{INTERCEPTOR});
+
+    /**
+     * {@code Lookup.defineHiddenClass}, or {@code null} before Java 15
+     */
+    private static final Method DEFINE_HIDDEN_CLASS;
+
+    /**
+     * An empty {@code ClassOption[]}: hidden classes that aren't nestmates,
+     * and that can be unloaded independently of their defining loader
+     */
+    private static final Object NO_OPTIONS;
+
+    static {
+        Method define = null;
+        Object options = null;
+        try {
+            final Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(option, 0);
+            define = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            // an older JVM; every type falls back to cglib
+        }
+        DEFINE_HIDDEN_CLASS = define;
+        NO_OPTIONS = options;
+    }
+
+    private final Method[] slots;
+    private final MethodHandle constructor;
+    private final MethodHandle interceptor;
+
+    private HiddenProxyClass(final Class<?>[] types) throws ReflectiveOperationException {
+        super(types);
+        this.slots = Enhancers.denseSlots(types);
+        final MethodHandles.Lookup lookup;
+        try {
+            lookup = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(MethodHandles.lookup(), generate(types, slots), false, NO_OPTIONS);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        final Class<?> proxyClass = lookup.lookupClass();
+        try {
+            lookup.findStaticSetter(proxyClass, METHODS_FIELD, Method[].class).invokeExact(slots);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+        this.constructor = lookup.findConstructor(proxyClass, MethodType.methodType(void.class, Interceptor.class))
+                .asType(MethodType.methodType(Object.class, Interceptor.class));
+        this.interceptor = lookup.findGetter(proxyClass, INTERCEPTOR_FIELD, Interceptor.class)
+                .asType(MethodType.methodType(Interceptor.class, Object.class));
+        register(proxyClass);
+    }
+
+    /**
+     * Tells whether this JVM can define hidden classes
+     */
+    static boolean isAvailable() {
+        return DEFINE_HIDDEN_CLASS != null;
+    }
+
+    /**
+     * Generates the hidden proxy class for a set of types
+     *
+     * @param types the requested types
+     * @return the proxy class, or {@code null} if hidden classes aren't
+     * available, or the types aren't all interfaces that this package can
+     * implement
+     */
+    static HiddenProxyClass define(final Class<?>[] types) {
+        if (DEFINE_HIDDEN_CLASS == null) {
+            return null;
+        }
+        for (Class<?> type : types) {
+            if (!type.isInterface() || !(Modifier.isPublic(type.getModifiers()) || type.getPackage() == HiddenProxyClass.class.getPackage())) {
+                return null;
+            }
+        }
+        if (!Enhancers.seesAll(HiddenProxyClass.class.getClassLoader(), types)) {
+            return null;
+        }
+        try {
+            return new HiddenProxyClass(types);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] generate(final Class<?>[] types, final Method[] slots) {
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        final ClassEmitter ce = new ClassEmitter(cw);
+        final Type[] interfaces = new Type[types.length];
+        for (int i = 0; i < types.length; i++) {
+            interfaces[i] = Type.getType(types[i]);
+        }
+        ce.begin_class(Constants.V1_2, Constants.ACC_PUBLIC | Constants.ACC_FINAL, CLASS_NAME, Constants.TYPE_OBJECT, interfaces, Constants.SOURCE_FILE);
+        ce.declare_field(Constants.ACC_PRIVATE | Constants.ACC_FINAL, INTERCEPTOR_FIELD, INTERCEPTOR, null);
+        ce.declare_field(Constants.ACC_PRIVATE | Constants.ACC_STATIC, METHODS_FIELD, METHOD_ARRAY, null);
+
+        CodeEmitter e = ce.begin_method(Constants.ACC_PUBLIC, CONSTRUCTOR, null);
+        e.load_this();
+        e.super_invoke_constructor();
+        e.load_this();
+        e.load_arg(0);
+        e.putfield(INTERCEPTOR_FIELD);
+        e.return_value();
+        e.end_method();
+
+        for (int slot = 0; slot < slots.length; slot++) {
+            final Method method = slots[slot];
+            final Signature signature = ReflectUtils.getSignature(method);
+            e = ce.begin_method(Constants.ACC_PUBLIC, signature, ReflectUtils.getExceptionTypes(method));
+            e.load_this();
+            e.getfield(INTERCEPTOR_FIELD);
+            e.load_this();
+            e.getstatic(ce.getClassType(), METHODS_FIELD, METHOD_ARRAY);
+            e.push(slot);
+            e.aaload();
+            e.push(slot);
+            e.create_arg_array();
+            e.invoke_interface(INTERCEPTOR, INTERCEPT);
+            final Type returnType = signature.getReturnType();
+            if (returnType.getSort() == Type.VOID) {
+                e.pop();
+            } else {
+                e.unbox_or_zero(returnType);
+            }
+            e.return_value();
+            e.end_method();
+        }
+        ce.end_class();
+        return cw.toByteArray();
+    }
+
+    @Override
+    Method[] slots() {
+        return slots;
+    }
+
+    @Override
+    Object newInstance(final Interceptor interceptor) {
+        try {
+            return (Object) constructor.invokeExact(interceptor);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    @Override
+    Interceptor interceptorOf(final Object proxy) {
+        try {
+            return (Interceptor) interceptor.invokeExact(proxy);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+}
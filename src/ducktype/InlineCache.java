@@ -0,0 +1,112 @@
+package ducktype;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A polymorphic inline cache for one method of a proxied type
+ *
+ * <p>Remembers the invokers of the method for the first few receiver classes
+ * it is called with, in the order they were seen, so that a call site that
+ * always sees the same class finds its invoker with a single comparison.
+ * Once the cache is full, calls with other classes are megamorphic: their
+ * invoker is looked up in the shared {@link MethodIndex} of the receiver's
+ * class every time.</p>
+ *
+ * <p>Entries are published as immutable arrays, so lookups never lock. Misses
+ * are counted exactly. Hits and megamorphic calls are only counted once in a
+ * while, on a random sample of them, so that they don't all write the same
+ * counter.</p>
+ */
+final class InlineCache implements Invoker {
+
+    private static final class Entry {
+
+        final Class<?> receiverClass;
+        final Invoker invoker;
+
+        Entry(final Class<?> receiverClass, final Invoker invoker) {
+            this.receiverClass = receiverClass;
+            this.invoker = invoker;
+        }
+    }
+
+    private static final Entry[] EMPTY = new Entry[0];
+
+    /**
+     * Hits and megamorphic calls are counted once every so many, on average
+     */
+    private static final int SAMPLING = 64;
+
+    private final String name;
+    private final Class<?>[] parameterTypes;
+    private final Linkage linkage;
+    private final int size;
+    private volatile Entry[] entries = EMPTY;
+    private final AtomicLong sampledHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong sampledMegamorphic = new AtomicLong();
+
+    /**
+     * Creates an empty cache
+     *
+     * @param name the method name
+     * @param parameterTypes the method parameter types. Must not be modified afterwards.
+     * @param linkage how the method should be linked for each receiver class
+     * @param size the most receiver classes to remember
+     */
+    InlineCache(final String name, final Class<?>[] parameterTypes, final Linkage linkage, final int size) {
+        this.name = name;
+        this.parameterTypes = parameterTypes;
+        this.linkage = linkage;
+        this.size = size;
+    }
+
+    @Override
+    public Object invoke(final Object target, final Object[] args) throws Throwable {
+        return invoker(target.getClass()).invoke(target, args);
+    }
+
+    /**
+     * Returns the invoker of the method for a receiver class
+     *
+     * @param receiverClass the class of the object the method is called on
+     * @return the invoker, which throws a {@code NoSuchMethodError} if the
+     * class has no such public method
+     */
+    Invoker invoker(final Class<?> receiverClass) {
+        final Entry[] e = entries;
+        for (int i = 0; i < e.length; i++) {
+            if (e[i].receiverClass == receiverClass) {
+                if (ThreadLocalRandom.current().nextInt(SAMPLING) == 0) {
+                    sampledHits.incrementAndGet();
+                }
+                return e[i].invoker;
+            }
+        }
+        final Invoker invoker = MethodIndex.of(receiverClass, linkage).bind(name, parameterTypes);
+        if (e.length < size) {
+            misses.incrementAndGet();
+            // racing threads may each add a class; a lost entry is just a later miss
+            final Entry[] grown = new Entry[e.length + 1];
+            System.arraycopy(e, 0, grown, 0, e.length);
+            grown[e.length] = new Entry(receiverClass, invoker);
+            entries = grown;
+        } else if (ThreadLocalRandom.current().nextInt(SAMPLING) == 0) {
+            sampledMegamorphic.incrementAndGet();
+        }
+        return invoker;
+    }
+
+    long hits() {
+        return sampledHits.get() * SAMPLING;
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    long megamorphicCalls() {
+        return sampledMegamorphic.get() * SAMPLING;
+    }
+}
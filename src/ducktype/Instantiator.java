@@ -0,0 +1,119 @@
+package ducktype;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Creates instances of proxy classes without running the constructors of the
+ * proxied class
+ *
+ * <p>A proxy of a class is a subclass of it, but all its state lives in its
+ * target or delegates, so running the superclass constructors for each proxy
+ * is wasted work at best, and a source of unwanted side effects at worst.
+ * Like Objenesis does, this class asks the JDK's
+ * {@code sun.reflect.ReflectionFactory} for a serialization constructor, which
+ * allocates an instance of the proxy class but only runs the constructor of
+ * {@code Object}. The factory is looked up reflectively; where it isn't
+ * available, or when the {@code ducktype.bypassConstructors} system property
+ * is {@code false}, proxies are constructed normally.</p>
+ */
+final class Instantiator {
+
+    private static final Object REFLECTION_FACTORY;
+    private static final Method NEW_CONSTRUCTOR_FOR_SERIALIZATION;
+
+    static {
+        Object factory = null;
+        Method method = null;
+        if (!"false".equals(System.getProperty("ducktype.bypassConstructors"))) {
+            try {
+                final Class<?> c = Class.forName("sun.reflect.ReflectionFactory");
+                factory = c.getMethod("getReflectionFactory").invoke(null);
+                method = c.getMethod("newConstructorForSerialization", Class.class, Constructor.class);
+            } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+                factory = null;
+                method = null;
+            }
+        }
+        REFLECTION_FACTORY = factory;
+        NEW_CONSTRUCTOR_FOR_SERIALIZATION = method;
+    }
+
+    private final Constructor<?> constructor;
+    private final MethodHandle[] setters;
+
+    private Instantiator(final Constructor<?> constructor, final MethodHandle[] setters) {
+        this.constructor = constructor;
+        this.setters = setters;
+    }
+
+    /**
+     * Returns a constructor that creates instances of a class without running
+     * any of its constructors, other than {@code Object}'s
+     *
+     * @param c the class to instantiate
+     * @return the constructor, or {@code null} if constructors can't be bypassed
+     */
+    static Constructor<?> bypassing(final Class<?> c) {
+        if (NEW_CONSTRUCTOR_FOR_SERIALIZATION == null) {
+            return null;
+        }
+        try {
+            final Constructor<?> constructor = (Constructor<?>) NEW_CONSTRUCTOR_FOR_SERIALIZATION.invoke(
+                    REFLECTION_FACTORY, c, Object.class.getDeclaredConstructor());
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a handle that creates instances of a class without running its
+     * constructors, and then assigns some of its fields
+     *
+     * @param c the class to instantiate
+     * @param fields the names of the fields to assign, in argument order
+     * @return a handle of type {@code (Object...)Object}, with one argument
+     * per field, or {@code null} if constructors can't be bypassed
+     */
+    static MethodHandle handle(final Class<?> c, final String... fields) {
+        final Constructor<?> constructor = bypassing(c);
+        if (constructor == null) {
+            return null;
+        }
+        try {
+            final MethodHandle[] setters = new MethodHandle[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                final Field field = c.getDeclaredField(fields[i]);
+                field.setAccessible(true);
+                setters[i] = MethodHandles.lookup().unreflectSetter(field)
+                        .asType(MethodType.methodType(void.class, Object.class, Object.class));
+            }
+            return MethodHandles.lookup()
+                    .findVirtual(Instantiator.class, "newInstance", MethodType.methodType(Object.class, Object[].class))
+                    .bindTo(new Instantiator(constructor, setters))
+                    .asCollector(Object[].class, fields.length);
+        } catch (NoSuchFieldException | NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private Object newInstance(final Object[] values) throws Throwable {
+        final Object instance;
+        try {
+            instance = constructor.newInstance();
+        } catch (InvocationTargetException ite) {
+            throw ite.getCause();
+        }
+        for (int i = 0; i < setters.length; i++) {
+            setters[i].invokeExact(instance, values[i]);
+        }
+        return instance;
+    }
+}
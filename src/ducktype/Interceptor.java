@@ -0,0 +1,31 @@
+package ducktype;
+
+import java.lang.reflect.Method;
+
+/**
+ * Handles the calls made on a proxy, whichever {@link Backend} created it
+ *
+ * <p>Each backend turns its own kind of callback into a call of this
+ * interface, together with the slot of the called method, so that
+ * interceptors can find per-method data with a single array load.</p>
+ */
+interface Interceptor {
+
+    /**
+     * The slot passed for methods that the proxy class has no slot for
+     */
+    int NO_SLOT = Integer.MAX_VALUE;
+
+    /**
+     * Handles a call made on a proxy
+     *
+     * @param proxy the proxy the method was called on
+     * @param method the called method
+     * @param slot the slot of the method, see
+     * {@link Enhancers.ProxyClass#slots()}, or {@link #NO_SLOT}
+     * @param args the method arguments, boxed as necessary; never {@code null}
+     * @return the method's result, boxed as necessary, or {@code null} for void methods
+     * @throws Throwable whatever the called method throws
+     */
+    Object intercept(Object proxy, Method method, int slot, Object[] args) throws Throwable;
+}
@@ -0,0 +1,21 @@
+package ducktype;
+
+/**
+ * A resolved call to one method of a target class
+ *
+ * <p>Invokers are looked up once per (target class, signature) pair and then
+ * reused for every call made through a proxy, so they must be stateless with
+ * respect to the target they are invoked on.</p>
+ */
+interface Invoker {
+
+    /**
+     * Calls the resolved method on the target object
+     *
+     * @param target the object to call the method on
+     * @param args the method arguments, boxed as necessary
+     * @return the method's result, boxed as necessary, or {@code null} for void methods
+     * @throws Throwable whatever the called method throws
+     */
+    Object invoke(Object target, Object[] args) throws Throwable;
+}
@@ -0,0 +1,154 @@
+package ducktype;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@code java.lang.reflect.Proxy} class, see {@link Backend#JDK_PROXY}
+ *
+ * <p>JDK proxies hand their invocation handler the {@code Method} that was
+ * called, so each call looks its slot up in a map that is built once per
+ * proxy class.</p>
+ */
+final class JdkProxyClass extends Enhancers.ProxyClass {
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    /**
+     * What a proxy returns instead of {@code null} from a method with a
+     * primitive return type, like cglib's proxies do
+     */
+    private static final Map<Class<?>, Object> ZEROS = new HashMap<>();
+
+    static {
+        ZEROS.put(boolean.class, false);
+        ZEROS.put(byte.class, (byte) 0);
+        ZEROS.put(short.class, (short) 0);
+        ZEROS.put(char.class, (char) 0);
+        ZEROS.put(int.class, 0);
+        ZEROS.put(long.class, 0L);
+        ZEROS.put(float.class, 0f);
+        ZEROS.put(double.class, 0d);
+    }
+
+    /**
+     * The handler of the one instance created to get hold of a proxy class,
+     * which is never called
+     */
+    private static final InvocationHandler UNUSED = new InvocationHandler() {
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            throw new IllegalStateException("not a duck-typed proxy");
+        }
+    };
+
+    /**
+     * Hands the calls made on a JDK proxy to an {@link Interceptor}
+     */
+    private static final class Handler implements InvocationHandler {
+
+        final Interceptor interceptor;
+        private final Map<Method, Integer> slotsByMethod;
+
+        Handler(final Interceptor interceptor, final Map<Method, Integer> slotsByMethod) {
+            this.interceptor = interceptor;
+            this.slotsByMethod = slotsByMethod;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final Integer slot = slotsByMethod.get(method);
+            final Object result = interceptor.intercept(proxy, method, slot != null ? slot : Interceptor.NO_SLOT, args != null ? args : NO_ARGS);
+            // the proxy would throw a NullPointerException when unboxing
+            return result != null ? result : ZEROS.get(method.getReturnType());
+        }
+    }
+
+    private final MethodHandle constructor;
+    private final Method[] slots;
+    private final Map<Method, Integer> slotsByMethod;
+
+    private JdkProxyClass(final Class<?>[] types, final Class<?> proxyClass) throws NoSuchMethodException, IllegalAccessException {
+        super(types);
+        this.constructor = MethodHandles.lookup().unreflectConstructor(proxyClass.getConstructor(InvocationHandler.class))
+                .asType(MethodType.methodType(Object.class, InvocationHandler.class));
+        this.slots = Enhancers.denseSlots(types);
+
+        // the proxy passes the Method of whichever type it found first, and
+        // Object's own for equals, hashCode and toString
+        final Map<String, Integer> slotsByKey = new HashMap<>();
+        for (int i = 0; i < slots.length; i++) {
+            slotsByKey.put(Enhancers.keyOf(slots[i]), i);
+        }
+        final Map<Method, Integer> byMethod = new HashMap<>();
+        for (Class<?> type : types) {
+            mapMethods(type, slotsByKey, byMethod);
+        }
+        mapMethods(Object.class, slotsByKey, byMethod);
+        this.slotsByMethod = byMethod;
+        register(proxyClass);
+    }
+
+    private static void mapMethods(final Class<?> type, final Map<String, Integer> slotsByKey, final Map<Method, Integer> slotsByMethod) {
+        for (Method method : type.getMethods()) {
+            final Integer slot = slotsByKey.get(Enhancers.keyOf(method));
+            if (slot != null) {
+                slotsByMethod.put(method, slot);
+            }
+        }
+    }
+
+    /**
+     * Generates the JDK proxy class for a set of types
+     *
+     * @param types the requested types
+     * @return the proxy class, or {@code null} if they aren't all interfaces,
+     * or no class loader sees them all
+     */
+    static JdkProxyClass define(final Class<?>[] types) {
+        for (Class<?> type : types) {
+            if (!type.isInterface()) {
+                return null;
+            }
+        }
+        final ClassLoader loader = Enhancers.loaderFor(types);
+        if (loader == null) {
+            return null;
+        }
+        try {
+            // Proxy.getProxyClass is deprecated: the class of a first instance
+            // is the same proxy class
+            return new JdkProxyClass(types, Proxy.newProxyInstance(loader, types, UNUSED).getClass());
+        } catch (IllegalArgumentException | NoSuchMethodException | IllegalAccessException e) {
+            // eg. non-public interfaces from several packages
+            return null;
+        }
+    }
+
+    @Override
+    Method[] slots() {
+        return slots;
+    }
+
+    @Override
+    Object newInstance(final Interceptor interceptor) {
+        try {
+            return (Object) constructor.invokeExact((InvocationHandler) new Handler(interceptor, slotsByMethod));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    @Override
+    Interceptor interceptorOf(final Object proxy) {
+        return ((Handler) Proxy.getInvocationHandler(proxy)).interceptor;
+    }
+}
@@ -0,0 +1,159 @@
+package ducktype;
+
+import java.lang.reflect.Method;
+
+/**
+ * How calls made through a duck-typed proxy reach the target object
+ *
+ * <p>The linkage used for new proxies can be chosen with the
+ * {@code ducktype.linkage} system property, or at runtime with
+ * {@link #setDefault(Linkage)}. Proxies that already exist keep the linkage
+ * they were created with. How the proxies themselves are generated is up to
+ * the {@link Backend}.</p>
+ */
+public enum Linkage {
+
+    /**
+     * Every call is intercepted by a proxy and forwarded to the target
+     * with {@code java.lang.reflect}
+     */
+    REFLECTION {
+        @Override
+        Invoker link(final Class<?> type, final Method method) {
+            return new ReflectiveInvoker(method);
+        }
+    },
+    /**
+     * Every call is intercepted by a proxy and forwarded to the target
+     * through a cglib {@code FastClass}, which calls the target method
+     * directly from a generated {@code switch}. This is the default.
+     */
+    FAST_CLASS {
+        @Override
+        Invoker link(final Class<?> type, final Method method) {
+            return FastClassInvoker.link(type, method);
+        }
+    },
+    /**
+     * Every call is intercepted by a proxy and forwarded to the target
+     * through a {@code MethodHandle} that is linked once per method. Since
+     * the handle isn't a constant, the JIT doesn't inline through it, and this
+     * is slower than {@link #REFLECTION}.
+     */
+    METHOD_HANDLE {
+        @Override
+        Invoker link(final Class<?> type, final Method method) {
+            return MethodHandleInvoker.link(method);
+        }
+    },
+    /**
+     * Calls are compiled into a generated adapter class that calls the target
+     * directly, without boxing or reflection. Combinations of classes that
+     * cannot be compiled (eg. because of access restrictions), and calls that
+     * have to be intercepted anyway (eg. by a {@link Mixin}), are linked as
+     * {@link #FAST_CLASS}.
+     */
+    COMPILED {
+        @Override
+        Invoker link(final Class<?> type, final Method method) {
+            return FastClassInvoker.link(type, method);
+        }
+    },
+    /**
+     * Proxies are intercepted, and call the target with
+     * {@code java.lang.reflect}, until the proxies created by the same
+     * {@link Adapter} have been called {@linkplain #getTierUpThreshold() often
+     * enough} in total. From then on, the adapter creates instances of a
+     * compiled adapter class, as {@link #COMPILED} does. Proxies that already
+     * exist stay intercepted, and aren't equal to the compiled ones. Nothing is
+     * generated for adapters that are rarely called through, which makes this
+     * the cheapest linkage to start with. Calls that have to be intercepted
+     * anyway (eg. by a {@link Mixin}) are linked as {@link #REFLECTION},
+     * which behind an interceptor is within about a nanosecond of
+     * {@link #FAST_CLASS}.
+     */
+    TIERED {
+        @Override
+        Invoker link(final Class<?> type, final Method method) {
+            return new ReflectiveInvoker(method);
+        }
+    };
+
+    private static volatile Linkage current = fromProperty(System.getProperty("ducktype.linkage"));
+    private static volatile int tierUpThreshold = Integer.getInteger("ducktype.tierUpThreshold", 1000);
+
+    private final ClassValue<MethodIndex> indexes = new ClassValue<MethodIndex>() {
+        @Override
+        protected MethodIndex computeValue(final Class<?> type) {
+            return new MethodIndex(type, Linkage.this);
+        }
+    };
+
+    private static Linkage fromProperty(final String value) {
+        return value == null ? FAST_CLASS : valueOf(value.trim().toUpperCase());
+    }
+
+    /**
+     * Returns the linkage used for new proxies
+     *
+     * @return the current default linkage
+     */
+    public static Linkage getDefault() {
+        return current;
+    }
+
+    /**
+     * Sets the linkage used for new proxies
+     *
+     * @param linkage the new default linkage
+     */
+    public static void setDefault(final Linkage linkage) {
+        if (linkage == null) {
+            throw new NullPointerException("linkage");
+        }
+        current = linkage;
+    }
+
+    /**
+     * Returns how many calls the proxies of an adapter take before
+     * {@link #TIERED} compiles it
+     *
+     * <p>The threshold can be chosen with the {@code ducktype.tierUpThreshold}
+     * system property, and defaults to 1000.</p>
+     *
+     * @return the current threshold
+     */
+    public static int getTierUpThreshold() {
+        return tierUpThreshold;
+    }
+
+    /**
+     * Sets how many calls the proxies of an adapter take before
+     * {@link #TIERED} compiles it
+     *
+     * <p>Adapters that already exist keep the threshold they were created
+     * with.</p>
+     *
+     * @param threshold the new threshold; 1 compiles adapters after the first
+     * call through one of their proxies
+     * @throws IllegalArgumentException if the threshold is less than 1
+     */
+    public static void setTierUpThreshold(final int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("threshold: " + threshold);
+        }
+        tierUpThreshold = threshold;
+    }
+
+    /**
+     * Links a public method of a class into a reusable invoker
+     */
+    abstract Invoker link(Class<?> type, Method method);
+
+    /**
+     * Returns the shared method index for a class under this linkage
+     */
+    final MethodIndex index(final Class<?> type) {
+        return indexes.get(type);
+    }
+}
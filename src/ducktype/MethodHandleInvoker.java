@@ -0,0 +1,66 @@
+package ducktype;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Calls a method through a {@link MethodHandle}
+ *
+ * <p>The handle is looked up and adapted to a generic
+ * {@code (Object, Object[])Object} shape once, when the invoker is linked.
+ * Invokers are always read from tables, never from constants, so the JIT
+ * can't inline through the handle: calls are about twice as slow as with
+ * {@code java.lang.reflect}.</p>
+ */
+final class MethodHandleInvoker implements Invoker {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final MethodHandle handle;
+
+    private MethodHandleInvoker(final MethodHandle handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Links a method to a method handle invoker
+     *
+     * @param method the method to link
+     * @return the invoker, or a reflective invoker if no method handle can be
+     * obtained for the method from this package
+     */
+    static Invoker link(final Method method) {
+        final Class<?>[] parameterTypes = method.getParameterTypes();
+        final MethodType type = MethodType.methodType(method.getReturnType(), parameterTypes);
+        final boolean isStatic = Modifier.isStatic(method.getModifiers());
+        MethodHandle target;
+        try {
+            target = isStatic
+                    ? LOOKUP.findStatic(method.getDeclaringClass(), method.getName(), type)
+                    : LOOKUP.findVirtual(method.getDeclaringClass(), method.getName(), type);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            try {
+                // eg. a public method of a class this package can't see
+                method.setAccessible(true);
+                target = LOOKUP.unreflect(method);
+            } catch (IllegalAccessException | RuntimeException e2) {
+                return new ReflectiveInvoker(method);
+            }
+        }
+        if (isStatic) {
+            // static methods ignore the target
+            target = MethodHandles.dropArguments(target, 0, Object.class);
+        }
+        return new MethodHandleInvoker(target
+                .asType(MethodType.genericMethodType(parameterTypes.length + 1))
+                .asSpreader(Object[].class, parameterTypes.length));
+    }
+
+    @Override
+    public Object invoke(final Object target, final Object[] args) throws Throwable {
+        return (Object) handle.invokeExact(target, args);
+    }
+}
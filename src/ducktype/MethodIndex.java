@@ -0,0 +1,233 @@
+package ducktype;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A structural index of the public methods of a class
+ *
+ * <p>Maps a method name and parameter types to an {@link Invoker} for the
+ * matching public method of the indexed class. There is exactly one index per
+ * class and {@link Linkage} in the JVM, held in a {@link ClassValue}, so every
+ * proxy wrapping an instance of the same class shares the same resolved
+ * invokers and the reflective lookup and linkage for a given signature is only
+ * ever paid once.</p>
+ */
+final class MethodIndex {
+
+    private static final class MethodKey {
+
+        private final String name;
+        private final Class<?>[] parameterTypes;
+        private final int hash;
+
+        MethodKey(final String name, final Class<?>[] parameterTypes) {
+            this.name = name;
+            this.parameterTypes = parameterTypes;
+            this.hash = 31 * name.hashCode() + Arrays.hashCode(parameterTypes);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MethodKey)) {
+                return false;
+            }
+            final MethodKey other = (MethodKey) o;
+            return name.equals(other.name) && Arrays.equals(parameterTypes, other.parameterTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A resolved signature. Misses are cached too, as {@link #MISSING}, unless
+     * that would pin the class loader of a parameter type, see
+     * {@link #outlives(Class[])}.
+     */
+    private static final class Resolved {
+
+        final Method method;
+        volatile Invoker invoker;
+
+        Resolved(final Method method) {
+            this.method = method;
+        }
+    }
+
+    private static final Resolved MISSING = new Resolved(null);
+
+    private final Class<?> type;
+    private final Linkage linkage;
+    private final ConcurrentMap<MethodKey, Resolved> resolved = new ConcurrentHashMap<>();
+    private volatile Method[] publicMethods;
+
+    MethodIndex(final Class<?> type, final Linkage linkage) {
+        this.type = type;
+        this.linkage = linkage;
+    }
+
+    /**
+     * Returns the shared method index for a class
+     *
+     * @param type the class whose public methods should be indexed
+     * @param linkage how the indexed methods should be linked
+     * @return the index for that class
+     */
+    static MethodIndex of(final Class<?> type, final Linkage linkage) {
+        return linkage.index(type);
+    }
+
+    /**
+     * Finds the invoker for the public method with the given signature
+     *
+     * @param name the method name
+     * @param parameterTypes the method parameter types. Must not be modified afterwards.
+     * @return the invoker, or {@code null} if the indexed class has no such public method
+     */
+    Invoker find(final String name, final Class<?>[] parameterTypes) {
+        final Resolved r = resolve(name, parameterTypes);
+        if (r == MISSING) {
+            return null;
+        }
+        Invoker invoker = r.invoker;
+        if (invoker == null) {
+            // racing threads may both link the method; either invoker will do
+            invoker = linkage.link(type, r.method);
+            r.invoker = invoker;
+        }
+        return invoker;
+    }
+
+    /**
+     * Finds the invoker for the public method with the given signature, or
+     * one that throws a {@code NoSuchMethodError} if there is no such method
+     *
+     * @param name the method name
+     * @param parameterTypes the method parameter types. Must not be modified afterwards.
+     * @return the invoker
+     */
+    Invoker bind(final String name, final Class<?>[] parameterTypes) {
+        final Invoker invoker = find(name, parameterTypes);
+        if (invoker != null) {
+            return invoker;
+        }
+        final String description = describe(name, parameterTypes);
+        return new Invoker() {
+            @Override
+            public Object invoke(final Object target, final Object[] args) {
+                throw new NoSuchMethodError(description);
+            }
+        };
+    }
+
+    /**
+     * Finds the public method with the given signature
+     *
+     * @param name the method name
+     * @param parameterTypes the method parameter types. Must not be modified afterwards.
+     * @return the method, or {@code null} if the indexed class has no such public method
+     */
+    Method findMethod(final String name, final Class<?>[] parameterTypes) {
+        return resolve(name, parameterTypes).method;
+    }
+
+    private Resolved resolve(final String name, final Class<?>[] parameterTypes) {
+        final MethodKey key = new MethodKey(name, parameterTypes);
+        Resolved r = resolved.get(key);
+        if (r == null) {
+            final Method method = lookup(name, parameterTypes);
+            if (method == null && !outlives(parameterTypes)) {
+                return MISSING;
+            }
+            r = method == null ? MISSING : new Resolved(method);
+            final Resolved raced = resolved.putIfAbsent(key, r);
+            if (raced != null) {
+                r = raced;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Tells whether the indexed class can keep a signature's parameter types
+     * without keeping any class loader alive longer than it would anyway
+     *
+     * <p>A hit only has the parameter types of a method of the indexed class.
+     * A miss can have any, eg. those of a requested type that a tenant loaded,
+     * and the index lasts as long as the indexed class: a long-lived class
+     * would otherwise pin every tenant that ever asked it for a method it
+     * doesn't have.</p>
+     */
+    private boolean outlives(final Class<?>[] parameterTypes) {
+        for (Class<?> parameterType : parameterTypes) {
+            while (parameterType.isArray()) {
+                parameterType = parameterType.getComponentType();
+            }
+            final ClassLoader loader = parameterType.getClassLoader();
+            if (loader != null && !isAncestor(loader, type.getClassLoader())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether a class loader is another one, or one of its parents
+     */
+    private static boolean isAncestor(final ClassLoader ancestor, final ClassLoader loader) {
+        for (ClassLoader l = loader; l != null; l = l.getParent()) {
+            if (l == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Does what {@code Class.getMethod} does, but reports a miss with
+     * {@code null} instead of an exception
+     */
+    private Method lookup(final String name, final Class<?>[] parameterTypes) {
+        Method[] methods = publicMethods;
+        if (methods == null) {
+            methods = type.getMethods();
+            publicMethods = methods;
+        }
+        Method found = null;
+        for (Method method : methods) {
+            if (method.getName().equals(name) && Arrays.equals(method.getParameterTypes(), parameterTypes)) {
+                // like getMethod, prefer the most specific return type
+                if (found == null || found.getReturnType().isAssignableFrom(method.getReturnType())) {
+                    found = method;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Describes a signature of the indexed class, for error messages
+     *
+     * @param name the method name
+     * @param parameterTypes the method parameter types
+     * @return a description of the form "{@code pkg.Type.name(pkg.Arg1, pkg.Arg2)}"
+     */
+    String describe(final String name, final Class<?>[] parameterTypes) {
+        final StringBuilder sb = new StringBuilder(type.getName()).append('.').append(name).append('(');
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i != 0) {
+                sb.append(", ");
+            }
+            sb.append(parameterTypes[i].getName());
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -1,11 +1,11 @@
 package ducktype;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import net.sf.cglib.proxy.Enhancer;
-import net.sf.cglib.proxy.MethodInterceptor;
-import net.sf.cglib.proxy.MethodProxy;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * In object-oriented programming languages, a mixin is a class that provides
@@ -25,43 +25,292 @@ import net.sf.cglib.proxy.MethodProxy;
  */
 public final class Mixin {
 
-    private final static class MixinMethodInterceptor implements MethodInterceptor {
+    private final static class MixinMethodInterceptor implements Interceptor {
 
         private final Mixin mixin;
+        private final Enhancers.ProxyClass proxyClass;
+        private final Linkage linkage;
+        /**
+         * Where the plan of this proxy is in the states of the mixin
+         */
+        private final int plan;
 
-        MixinMethodInterceptor(final Mixin mixin) {
+        MixinMethodInterceptor(final Mixin mixin, final Enhancers.ProxyClass proxyClass, final Linkage linkage) {
             this.mixin = mixin;
+            this.proxyClass = proxyClass;
+            this.linkage = linkage;
+            this.plan = mixin.planFor(proxyClass, linkage);
         }
 
         @Override
-        public Object intercept(final Object o, final Method method, final Object[] os, final MethodProxy mp) throws Throwable {
-            // todo: we could use the @targetClass to select the "most
-            // appropriate" delegate, assuming that multiple delegates implement
-            // the same method signature. for now, we pick the first delegate
-            // that contains a method matching the requested signature.
-
-            // todo: we might want to explictly disallow the equals(), 
-            // toString(), and hashcode() methods, since they will almost
-            // certainly do the wrong thing.
-
-            for (Object delegate : mixin.delegates) {
-                try {
-                    final Method proxy = delegate.getClass().getMethod(method.getName(), method.getParameterTypes());
-                    return proxy.invoke(delegate, os);
-                } catch (NoSuchMethodException nsme) {
-                    // swallow
+        public Object intercept(final Object o, final Method method, final int slot, final Object[] os) throws Throwable {
+            // the only volatile read: the state has the delegates and the
+            // plans for their classes
+            final State state = mixin.state;
+            final DispatchPlan p = state.plans[plan].plan;
+
+            if (p.covers(slot)) {
+                final int delegate = p.delegate(slot);
+                if (delegate >= 0) {
+                    return p.invoke(slot, state.delegates, os);
+                }
+                if (delegate < -1) {
+                    return answer(o, DispatchPlan.objectMethod(delegate), os);
+                }
+                throw new NoSuchMethodError(method.toGenericString());
+            }
+
+            // not one of the methods we plan for up front, eg. a protected method
+            final String name = method.getName();
+            final Class<?>[] parameterTypes = method.getParameterTypes();
+            // ranked the same way as the plan ranks the delegates
+            final Class<?> type = proxyClass.typeOf(method);
+            Object chosen = null;
+            Invoker chosenInvoker = null;
+            int chosenRank = DispatchPlan.STRUCTURAL + 1;
+            for (Object delegate : state.delegates) {
+                final int rank = DispatchPlan.rank(type, delegate.getClass());
+                if (rank < chosenRank) {
+                    final Invoker invoker = MethodIndex.of(delegate.getClass(), linkage).find(name, parameterTypes);
+                    if (invoker != null) {
+                        chosen = delegate;
+                        chosenInvoker = invoker;
+                        chosenRank = rank;
+                    }
                 }
             }
+            if (chosenInvoker != null) {
+                return chosenInvoker.invoke(chosen, os);
+            }
 
             throw new NoSuchMethodError(method.toGenericString());
         }
+
+        /**
+         * Answers {@code equals}, {@code hashCode} and {@code toString}: a
+         * proxy is only equal to itself, and describes its mixin
+         */
+        private Object answer(final Object o, final int objectMethod, final Object[] os) {
+            switch (objectMethod) {
+                case ObjectMethods.EQUALS:
+                    return o == os[0];
+                case ObjectMethods.HASH_CODE:
+                    return System.identityHashCode(o);
+                default:
+                    return mixin.toString();
+            }
+        }
     }
-    private final List<Object> delegates = new ArrayList<>();
+
+    /**
+     * Returns the Mixin of an intercepted proxy
+     *
+     * @param interceptor the interceptor of a proxy
+     * @return the Mixin, or {@code null} if the proxy isn't a Mixin proxy
+     */
+    static Mixin mixinOf(final Interceptor interceptor) {
+        return interceptor instanceof MixinMethodInterceptor ? ((MixinMethodInterceptor) interceptor).mixin : null;
+    }
+
+    /**
+     * An immutable snapshot of the delegates of a mixin, and of the dispatch
+     * plans of its proxies
+     *
+     * <p>Every change to the delegates publishes a new state, with the plans
+     * of every proxy for the new shape, in the same positions. Dispatch plans
+     * only depend on the shape, so replacing a delegate by another of the same
+     * class keeps the shape, and the plans computed for it. Proxies of new
+     * types append their plans.</p>
+     */
+    private static final class State {
+
+        static final State EMPTY = new State(new Object[0], Shape.EMPTY, new Bound[0]);
+
+        final Object[] delegates;
+        final Shape shape;
+        final Bound[] plans;
+
+        State(final Object[] delegates, final Shape shape, final Bound[] plans) {
+            this.delegates = delegates;
+            this.shape = shape;
+            this.plans = plans;
+        }
+
+        /**
+         * Returns a state with new delegates, and the plans for their shape
+         */
+        private State withDelegates(final Object[] delegates, final Shape shape) {
+            if (shape == this.shape) {
+                return new State(delegates, shape, plans);
+            }
+            final Bound[] replanned = new Bound[plans.length];
+            for (int i = 0; i < plans.length; i++) {
+                replanned[i] = plans[i].replan(shape);
+            }
+            return new State(delegates, shape, replanned);
+        }
+
+        /**
+         * Returns the position of the plan of a proxy class and linkage, or
+         * -1 if there is none yet
+         */
+        int indexOf(final Enhancers.ProxyClass proxyClass, final Linkage linkage) {
+            for (int i = 0; i < plans.length; i++) {
+                if (plans[i].proxyClass == proxyClass && plans[i].linkage == linkage) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the state with the plan of a proxy class and linkage appended
+         */
+        State withPlan(final Enhancers.ProxyClass proxyClass, final Linkage linkage) {
+            final Bound[] appended = Arrays.copyOf(plans, plans.length + 1);
+            appended[plans.length] = new Bound(proxyClass, linkage, shape.plan(proxyClass, linkage));
+            return new State(delegates, shape, appended);
+        }
+
+        /**
+         * Returns the state with the non-null objects appended
+         *
+         * @param added the objects to append
+         * @param flattened whether the objects may be appended as they are,
+         * even if they stand for others
+         * @return the new state, or {@code null} if some of the objects must
+         * be flattened first
+         */
+        State with(final Object[] added, final boolean flattened) {
+            Object[] delegates = null;
+            int size = this.delegates.length;
+            Shape shape = this.shape;
+            for (Object delegate : added) {
+                if (delegate != null) {
+                    shape = shape.with(delegate.getClass());
+                    if (shape.isWrapping() && !flattened) {
+                        return null;
+                    }
+                    if (delegates == null) {
+                        delegates = Arrays.copyOf(this.delegates, size + added.length);
+                    }
+                    delegates[size++] = delegate;
+                }
+            }
+            if (delegates == null) {
+                return this;
+            }
+            return withDelegates(size == delegates.length ? delegates : Arrays.copyOf(delegates, size), shape);
+        }
+
+        /**
+         * Returns the state with every occurrence of a delegate replaced, or
+         * this state if it doesn't contain the delegate
+         *
+         * @param oldDelegate the delegate to replace
+         * @param replacements the flattened objects that replace it, in order
+         */
+        State replace(final Object oldDelegate, final Object[] replacements) {
+            int occurrences = 0;
+            for (Object delegate : this.delegates) {
+                if (delegate == oldDelegate) {
+                    occurrences++;
+                }
+            }
+            if (occurrences == 0) {
+                return this;
+            }
+            if (replacements.length == 1 && replacements[0].getClass() == oldDelegate.getClass()) {
+                final Object[] delegates = this.delegates.clone();
+                for (int i = 0; i < delegates.length; i++) {
+                    if (delegates[i] == oldDelegate) {
+                        delegates[i] = replacements[0];
+                    }
+                }
+                return withDelegates(delegates, shape);
+            }
+            final Object[] delegates = new Object[this.delegates.length + occurrences * (replacements.length - 1)];
+            int size = 0;
+            for (Object delegate : this.delegates) {
+                if (delegate == oldDelegate) {
+                    System.arraycopy(replacements, 0, delegates, size, replacements.length);
+                    size += replacements.length;
+                } else {
+                    delegates[size++] = delegate;
+                }
+            }
+            Shape shape = Shape.EMPTY;
+            for (Object delegate : delegates) {
+                shape = shape.with(delegate.getClass());
+            }
+            return withDelegates(delegates, shape);
+        }
+    }
+
+    /**
+     * The dispatch plan of the proxies of a proxy class and linkage, for the
+     * shape of a state
+     */
+    private static final class Bound {
+
+        final Enhancers.ProxyClass proxyClass;
+        final Linkage linkage;
+        final DispatchPlan plan;
+
+        Bound(final Enhancers.ProxyClass proxyClass, final Linkage linkage, final DispatchPlan plan) {
+            this.proxyClass = proxyClass;
+            this.linkage = linkage;
+            this.plan = plan;
+        }
+
+        Bound replan(final Shape shape) {
+            return new Bound(proxyClass, linkage, shape.plan(proxyClass, linkage));
+        }
+    }
+
+    /**
+     * A proxy returned by {@link Mixin#asA(Class)} or {@link Mixin#asA(Class[])},
+     * remembered for reuse
+     */
+    private static final class Memo {
+
+        final Object key;
+        final Object proxy;
+        final Linkage linkage;
+        final Backend backend;
+
+        Memo(final Object key, final Object proxy, final Linkage linkage, final Backend backend) {
+            this.key = key;
+            this.proxy = proxy;
+            this.linkage = linkage;
+            this.backend = backend;
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<Mixin, State> STATE = AtomicReferenceFieldUpdater.newUpdater(Mixin.class, State.class, "state");
+    private static final AtomicReferenceFieldUpdater<Mixin, Memo[]> PROXIES = AtomicReferenceFieldUpdater.newUpdater(Mixin.class, Memo[].class, "proxies");
+    private static final Memo[] NO_PROXIES = new Memo[0];
+
+    private volatile State state;
+    private final boolean frozen;
+    /**
+     * Proxies by requested type, and composite proxies by proxy class. A
+     * mixin is only cast to a few types, so they are searched in order, and
+     * copied on write.
+     */
+    private volatile Memo[] proxies = NO_PROXIES;
 
     /**
      * Creates a new Mixin with no inherited functionality
      */
     public Mixin() {
+        this.state = State.EMPTY;
+        this.frozen = false;
+    }
+
+    private Mixin(final State state, final boolean frozen) {
+        this.state = state;
+        this.frozen = frozen;
     }
 
     /**
@@ -71,23 +320,114 @@ public final class Mixin {
      * If this list is null or empty, the method has no effect. If the delegate
      * list contains any {@code null} objects, those will be ignored.</p>
      *
-     * <p>Since method lookup is currently order-dependant vis-a-vis the list of
-     * inherited delegates, this Mixin will proxy the method call to the first
-     * inherited delegate object with a matching method signature. This means
-     * that (eg.) if 2 different delegate objects both implement a
-     * "{@code void close()}" method, the first matching delegate inherited will
-     * respond.</p>
+     * <p>When several delegates have a method with a matching signature, the
+     * one whose class best matches the type requested from {@link #asA(Class)}
+     * responds: an instance of that very type first, then an instance of a
+     * subclass or an implementation of it, then any other delegate. Among
+     * equally good matches, method lookup is order-dependant vis-a-vis the list
+     * of inherited delegates. This means that (eg.) if 2 unrelated delegate
+     * objects both implement a "{@code void close()}" method, the first
+     * matching delegate inherited will respond.</p>
+     *
+     * <p>Inheriting a Mixin, or an object returned by another Mixin's
+     * {@code asA}, inherits that Mixin's current delegates instead, in their
+     * order, so that calls reach them directly rather than through a second
+     * proxy. Later changes to the other Mixin don't affect this one.</p>
+     *
+     * <p>Objects previously returned by {@link #asA(Class)} see the new
+     * delegates from their next call on. This method may be called while other
+     * threads are calling methods on those objects: the delegates are replaced
+     * atomically, and calls never block. Each call sees either all or none of
+     * the delegates inherited by a concurrent call to this method.</p>
      *
      * @param delegates the objects whose functionality you want to inherit
+     * @throws UnsupportedOperationException if this Mixin is {@linkplain #freeze() frozen}
      */
     public void inherit(final Object... delegates) {
+        if (frozen) {
+            throw new UnsupportedOperationException("frozen Mixin");
+        }
         if (delegates != null && delegates.length != 0) {
-            for (Object delegate : delegates) {
-                if (delegate != null) {
-                    this.delegates.add(delegate);
+            State current;
+            State next;
+            do {
+                current = state;
+                next = inherited(current, delegates);
+            } while (next != current && !STATE.compareAndSet(this, current, next));
+        }
+    }
+
+    /**
+     * Returns the state with objects inherited, flattening them only if
+     * needed: plain delegates aren't unwrapped one by one
+     */
+    private static State inherited(final State state, final Object[] delegates) {
+        final State next = state.with(delegates, false);
+        return next != null ? next : state.with(flatten(delegates), true);
+    }
+
+    /**
+     * Replaces Mixins, and Mixin proxies, by the delegates of their Mixin
+     */
+    private static Object[] flatten(final Object[] delegates) {
+        List<Object> flattened = null;
+        for (int i = 0; i < delegates.length; i++) {
+            final Object unwrapped = DuckType.unwrap(delegates[i]);
+            if (unwrapped instanceof Mixin) {
+                if (flattened == null) {
+                    flattened = new ArrayList<>(Arrays.asList(delegates).subList(0, i));
                 }
+                flattened.addAll(Arrays.asList(((Mixin) unwrapped).state.delegates));
+            } else if (flattened != null) {
+                flattened.add(delegates[i]);
             }
         }
+        return flattened == null ? delegates : flattened.toArray();
+    }
+
+    /**
+     * Replaces an inherited delegate by another object
+     *
+     * <p>Every occurrence of {@code oldDelegate} (compared by identity) is
+     * replaced by {@code newDelegate}, keeping its position in the list of
+     * inherited delegates. Objects previously returned by {@link #asA(Class)}
+     * call the new delegate from their next call on, while calls already in
+     * progress finish on the old one. The replacement is atomic: a call sees
+     * either all the old delegates or all the new ones.</p>
+     *
+     * <p>When the new delegate has the same class as the old one, the methods
+     * are dispatched exactly as before, so swapping in a new version of a
+     * delegate costs no more than a single write.</p>
+     *
+     * <p>Like {@link #inherit(Object[])}, replacing a delegate by a Mixin, or
+     * by an object returned by another Mixin's {@code asA}, puts that Mixin's
+     * current delegates in its place, in order, so that calls never go
+     * through a second Mixin proxy.</p>
+     *
+     * @param oldDelegate the inherited object to replace
+     * @param newDelegate the object that replaces it
+     * @return true if {@code oldDelegate} was inherited, and has been replaced
+     * @throws NullPointerException if {@code newDelegate} is null
+     * @throws UnsupportedOperationException if this Mixin is {@linkplain #freeze() frozen}
+     */
+    public boolean replace(final Object oldDelegate, final Object newDelegate) {
+        if (newDelegate == null) {
+            throw new NullPointerException("newDelegate");
+        }
+        if (frozen) {
+            throw new UnsupportedOperationException("frozen Mixin");
+        }
+        final Object[] replacements = flatten(new Object[]{newDelegate});
+        State current;
+        State next;
+        do {
+            current = state;
+            next = current.replace(oldDelegate, replacements);
+            if (next == current) {
+                return false;
+            }
+        } while (!STATE.compareAndSet(this, current, next));
+        return true;
     }
 
     /**
@@ -99,12 +439,156 @@ public final class Mixin {
      * <p>If you attempt to access a method that isn't implemented by any of the
      * delegates, the JVM will throw a {@code NoSuchMethodError} exception at runtime.</p>
      *
+     * <p>Which delegate answers each method of the requested type is decided
+     * once per combination of delegate classes, so calls made through the
+     * returned object don't need to search the delegates. Calls are forwarded
+     * to the delegates according to the {@linkplain Linkage#getDefault()
+     * default linkage}.</p>
+     *
+     * <p>The returned object is remembered, and returned again by later calls
+     * with the same type, unless the default linkage or
+     * {@linkplain Backend#getDefault() backend} changes.</p>
+     *
      * @param <T> The class you want this mixin to be treated as
      * @param c The class you want this mixin to be treated as
      * @return this Mixin, cast to the requested type
      */
+    @SuppressWarnings("unchecked")
     public final <T> T asA(final Class<T> c) {
-        return (T) Enhancer.create(c, new MixinMethodInterceptor(this));
+        final Linkage linkage = frozen ? Linkage.COMPILED : Linkage.getDefault();
+        final Backend backend = Backend.getDefault();
+        final Memo memo = memo(c);
+        if (memo != null && memo.linkage == linkage && memo.backend == backend) {
+            return (T) memo.proxy;
+        }
+        Object proxy = frozen ? compile(c) : null;
+        if (proxy == null) {
+            final Enhancers.ProxyClass proxyClass = Enhancers.proxyClass(backend, c);
+            proxy = proxyClass.newInstance(new MixinMethodInterceptor(this, proxyClass, linkage));
+        }
+        remember(new Memo(c, proxy, linkage, backend));
+        return (T) proxy;
+    }
+
+    /**
+     * Adds the plan of a proxy class and linkage to the state, unless it is
+     * there already
+     *
+     * @return the position of the plan in this state, and in all later ones
+     */
+    private int planFor(final Enhancers.ProxyClass proxyClass, final Linkage linkage) {
+        State current;
+        do {
+            current = state;
+            final int index = current.indexOf(proxyClass, linkage);
+            if (index >= 0) {
+                return index;
+            }
+        } while (!STATE.compareAndSet(this, current, current.withPlan(proxyClass, linkage)));
+        return current.plans.length;
+    }
+
+    private Memo memo(final Object key) {
+        for (Memo memo : proxies) {
+            if (memo.key == key) {
+                return memo;
+            }
+        }
+        return null;
+    }
+
+    private void remember(final Memo memo) {
+        Memo[] current;
+        Memo[] next;
+        do {
+            current = proxies;
+            int i = 0;
+            while (i < current.length && current[i].key != memo.key) {
+                i++;
+            }
+            next = Arrays.copyOf(current, Math.max(current.length, i + 1));
+            next[i] = memo;
+        } while (!PROXIES.compareAndSet(this, current, next));
+    }
+
+    /**
+     * Casts this Mixin to several types at once
+     *
+     * <p>Returns a single object that implements all the requested types, and
+     * can be cast to any of them. This is cheaper than one {@link #asA(Class)}
+     * per type: the types share one proxy class, one proxy, and one dispatch
+     * plan. Each method is answered by the delegate that {@link #asA(Class)}
+     * of the type that declares the method would choose.</p>
+     *
+     * <p>The order of the types doesn't matter. The returned object is
+     * remembered like those returned by {@link #asA(Class)}. It calls the
+     * delegates through the {@linkplain Linkage#getDefault() default linkage},
+     * or through {@link Linkage#COMPILED} if this Mixin is frozen, but is never
+     * compiled into a direct-call adapter.</p>
+     *
+     * @param types any number of interfaces, and at most one class
+     * @return this Mixin, as an instance of all the requested types
+     * @throws IllegalArgumentException if no types are requested, or more than one class
+     */
+    public final Object asA(final Class<?>... types) {
+        if (types.length == 1) {
+            return asA(types[0]);
+        }
+        final Linkage linkage = frozen ? Linkage.COMPILED : Linkage.getDefault();
+        final Backend backend = Backend.getDefault();
+        final Enhancers.ProxyClass proxyClass = Enhancers.proxyClass(backend, types);
+        final Memo memo = memo(proxyClass);
+        if (memo != null && memo.linkage == linkage) {
+            return memo.proxy;
+        }
+        final Object proxy = proxyClass.newInstance(new MixinMethodInterceptor(this, proxyClass, linkage));
+        remember(new Memo(proxyClass, proxy, linkage, backend));
+        return proxy;
+    }
+
+    private Object compile(final Class<?> c) {
+        final State s = state;
+        final MethodHandle constructor = s.shape.compiled(c);
+        if (constructor == null) {
+            return null;
+        }
+        try {
+            return (Object) constructor.invokeExact((Object) this, s.delegates);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Freezes this Mixin
+     *
+     * <p>Returns an immutable Mixin with the delegates this one has now. Its
+     * {@link #asA(Class)} compiles the requested type into a generated class
+     * that holds each delegate in a final field and calls the delegates
+     * directly, regardless of the {@linkplain Linkage#getDefault() default
+     * linkage}, so the JIT can inline through it. Freeze mixins that are
+     * assembled once and never change.</p>
+     *
+     * <p>Inheriting into this Mixin later doesn't affect the frozen one.</p>
+     *
+     * @return the frozen Mixin, or this Mixin if it is already frozen
+     */
+    public Mixin freeze() {
+        return frozen ? this : new Mixin(state, true);
+    }
+
+    /**
+     * Describes this Mixin by its delegates, eg. {@code Mixin[ducktype.Duck@1b6d3586]}
+     *
+     * <p>Objects returned by {@link #asA(Class)} describe themselves the same
+     * way. They are equal only to themselves, and their hash code is their
+     * identity hash code.</p>
+     */
+    @Override
+    public String toString() {
+        return "Mixin" + Arrays.toString(state.delegates);
     }
 
     /**
@@ -115,9 +599,8 @@ public final class Mixin {
      * @return a new Mixin
      */
     public static Mixin mixin(final Object... delegates) {
-        Mixin mi = new Mixin();
-        mi.inherit(delegates);
-        return mi;
+        // nothing else sees the new Mixin yet, so its state needs no CAS
+        return new Mixin(delegates == null ? State.EMPTY : inherited(State.EMPTY, delegates), false);
     }
 
     private static void test(Mixin mixin) {
@@ -138,8 +621,47 @@ public final class Mixin {
         System.out.println("Test 1");
         test(mixin(new Duck(), new Goose()));
 
-        // change the order of inheritance
+        // change the order of inheritance; each type still prefers its own
+        // implementation
         System.out.println("Test 2");
         test(mixin(new Goose(), new Duck()));
+
+        // a frozen mixin behaves the same, but calls its delegates directly
+        System.out.println("Test 3");
+        test(mixin(new Duck(), new Goose()).freeze());
+
+        // swap the goose of a live mixin for a duck
+        System.out.println("Test 4");
+        final Goose goose = new Goose();
+        final Mixin mixin = mixin(new Duck(), goose);
+        final Goose proxy = mixin.asA(Goose.class);
+        proxy.quack();
+        mixin.replace(goose, new Duck());
+        proxy.quack();
+
+        // one proxy that is both a goose and a runnable
+        System.out.println("Test 5");
+        final Object both = mixin(new Goose(), new Runnable() {
+            @Override
+            public void run() {
+                System.out.println("Geese Run!");
+            }
+        }).asA(Goose.class, Runnable.class);
+        ((Goose) both).quack();
+        ((Runnable) both).run();
+
+        // a void method stands for a method that returns an int, with every
+        // backend
+        System.out.println("Test 6");
+        final Backend previous = Backend.getDefault();
+        for (Backend backend : Backend.values()) {
+            Backend.setDefault(backend);
+            final Comparable<?> comparable = mixin(new Object() {
+                public void compareTo(final Object o) {
+                }
+            }).asA(Comparable.class);
+            System.out.println(backend + " compares to " + comparable.compareTo(null));
+        }
+        Backend.setDefault(previous);
     }
 }
@@ -0,0 +1,41 @@
+package ducktype;
+
+import java.lang.reflect.Method;
+
+/**
+ * Recognizes the {@code equals}, {@code hashCode} and {@code toString} methods
+ *
+ * <p>Proxies implement these themselves instead of looking them up on their
+ * delegates: {@link DuckType} proxies forward them straight to the target, and
+ * {@link Mixin} proxies compare by identity.</p>
+ */
+final class ObjectMethods {
+
+    static final int NONE = 0;
+    static final int EQUALS = 1;
+    static final int HASH_CODE = 2;
+    static final int TO_STRING = 3;
+
+    private ObjectMethods() {
+    }
+
+    /**
+     * Tells which of the identity methods a method is
+     *
+     * @param method a proxied method
+     * @return {@link #EQUALS}, {@link #HASH_CODE}, {@link #TO_STRING} or {@link #NONE}
+     */
+    static int kind(final Method method) {
+        final Class<?>[] parameterTypes = method.getParameterTypes();
+        switch (method.getName()) {
+            case "equals":
+                return parameterTypes.length == 1 && parameterTypes[0] == Object.class ? EQUALS : NONE;
+            case "hashCode":
+                return parameterTypes.length == 0 ? HASH_CODE : NONE;
+            case "toString":
+                return parameterTypes.length == 0 ? TO_STRING : NONE;
+            default:
+                return NONE;
+        }
+    }
+}
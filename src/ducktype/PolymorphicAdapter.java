@@ -0,0 +1,122 @@
+package ducktype;
+
+import java.lang.reflect.Method;
+
+/**
+ * Presents objects of any class as another type
+ *
+ * <p>Unlike the adapters of {@link DuckType#adapterFor(Class, Class)}, which
+ * are linked for a single target class, a polymorphic adapter accepts targets
+ * of any class. Each method of the type has one call site, shared by all the
+ * proxies of the adapter, which resolves the target's method through a
+ * polymorphic inline cache keyed by the target's class: the first classes a
+ * method is called with are remembered, up to the
+ * {@linkplain #cacheSize() cache size}, and any further classes are looked up
+ * in a shared index on every call.</p>
+ *
+ * <p>The counters tell whether the cache size fits the mix of classes the
+ * adapter sees: a good fit has almost only hits, and no megamorphic calls.
+ * Misses, which fill the caches, are counted exactly. Hits and megamorphic
+ * calls are estimated from a random sample of them, so that calls from
+ * several threads don't contend on a counter.</p>
+ *
+ * @param <T> the type objects are presented as
+ */
+public final class PolymorphicAdapter<T> implements Adapter<T> {
+
+    private final Enhancers.ProxyClass proxyClass;
+    private final Invoker[] table;
+    private final InlineCache[] caches;
+    private final Linkage linkage;
+    private final int cacheSize;
+
+    PolymorphicAdapter(final Class<T> type, final Linkage linkage, final int cacheSize) {
+        this.proxyClass = Enhancers.proxyClass(type);
+        this.linkage = linkage;
+        this.cacheSize = cacheSize;
+
+        final Method[] slots = proxyClass.slots();
+        this.table = new Invoker[slots.length];
+        int count = 0;
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null) {
+                final Invoker objectMethod = DuckType.objectMethodInvoker(slots[i]);
+                if (objectMethod != null) {
+                    table[i] = objectMethod;
+                } else {
+                    table[i] = new InlineCache(slots[i].getName(), slots[i].getParameterTypes(), linkage, cacheSize);
+                    count++;
+                }
+            }
+        }
+        this.caches = new InlineCache[count];
+        for (Invoker invoker : table) {
+            if (invoker instanceof InlineCache) {
+                caches[--count] = (InlineCache) invoker;
+            }
+        }
+    }
+
+    /**
+     * Duck types an object
+     *
+     * @param target the object to wrap, of any class
+     * @return "target", interpreted as the adapter's type
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T wrap(final Object target) {
+        return (T) proxyClass.newInstance(new DuckType.DuckTypeMethodInterceptor(target, table, MethodIndex.of(target.getClass(), linkage)));
+    }
+
+    /**
+     * Returns the most target classes each method remembers
+     *
+     * @return the size of the inline caches
+     */
+    public int cacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Returns how many calls found their target class in an inline cache,
+     * estimated from a sample of them
+     *
+     * @return the approximate number of hits, over all the methods
+     */
+    public long hits() {
+        long hits = 0;
+        for (InlineCache cache : caches) {
+            hits += cache.hits();
+        }
+        return hits;
+    }
+
+    /**
+     * Returns how many calls added their target class to an inline cache
+     *
+     * @return the number of misses, over all the methods
+     */
+    public long misses() {
+        long misses = 0;
+        for (InlineCache cache : caches) {
+            misses += cache.misses();
+        }
+        return misses;
+    }
+
+    /**
+     * Returns how many calls found an inline cache full, and looked their
+     * target class up in the shared index, estimated from a sample of them
+     *
+     * @return the approximate number of megamorphic calls, over all the
+     * methods
+     */
+    public long megamorphicCalls() {
+        long megamorphic = 0;
+        for (InlineCache cache : caches) {
+            megamorphic += cache.megamorphicCalls();
+        }
+        return megamorphic;
+    }
+}
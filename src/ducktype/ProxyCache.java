@@ -0,0 +1,352 @@
+package ducktype;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the proxies created for each target and requested type
+ *
+ * <p>Once installed with {@link DuckType#setProxyCache(ProxyCache)},
+ * {@link DuckType#asA(Object, Class)} returns the same proxy for the same
+ * target (compared by identity) and the same type, for as long as the proxy is
+ * still in use. The cache holds targets and proxies weakly, so it never keeps
+ * either from being garbage collected, and holds at most a fixed number of
+ * entries, evicting the oldest ones beyond that.</p>
+ *
+ * <p>Lookups never lock, and don't write to memory that other threads read:
+ * hits are only counted on a sample of them. Adding a proxy locks one of
+ * several segments, one per available processor or so, so that threads
+ * wrapping different targets rarely contend. Statistics are approximate.</p>
+ */
+public final class ProxyCache {
+
+    /**
+     * Hits are counted once every so many, on average
+     */
+    private static final int HIT_SAMPLING = 64;
+
+    /**
+     * Identifies a target, compared by identity, a requested type and a
+     * backend. Keys for the same target, type and backend are equal, whether
+     * they reference the target strongly or weakly.
+     */
+    private abstract static class Key extends WeakReference<Object> {
+
+        final Class<?> type;
+        final Backend backend;
+        final int hash;
+
+        Key(final Object target, final Class<?> type, final Backend backend, final int hash, final ReferenceQueue<Object> queue) {
+            super(target, queue);
+            this.type = type;
+            this.backend = backend;
+            this.hash = hash;
+        }
+
+        abstract Object target();
+
+        @Override
+        public final int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public final boolean equals(final Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            final Object target = target();
+            return target != null && target == other.target() && type == other.type && backend == other.backend;
+        }
+    }
+
+    /**
+     * Weakly references a target, for the entries of the cache
+     */
+    private static final class WeakKey extends Key {
+
+        WeakKey(final LookupKey key, final ReferenceQueue<Object> queue) {
+            super(key.target, key.type, key.backend, key.hash, queue);
+        }
+
+        @Override
+        Object target() {
+            return get();
+        }
+    }
+
+    /**
+     * Looks up a target without registering a weak reference
+     */
+    private static final class LookupKey extends Key {
+
+        final Object target;
+
+        LookupKey(final Object target, final Class<?> type, final Backend backend, final int hash) {
+            super(null, type, backend, hash, null);
+            this.target = target;
+        }
+
+        @Override
+        Object target() {
+            return target;
+        }
+    }
+
+    /**
+     * Weakly references a proxy, and remembers how it was linked
+     */
+    private static final class WeakProxy extends WeakReference<Object> {
+
+        final Linkage linkage;
+
+        WeakProxy(final Object proxy, final Linkage linkage) {
+            super(proxy);
+            this.linkage = linkage;
+        }
+    }
+
+    private static final class Segment {
+
+        private final int capacity;
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+        private final ConcurrentMap<Key, WeakProxy> entries = new ConcurrentHashMap<>();
+        /**
+         * The keys, in the order they were added, for evicting the oldest entries
+         */
+        private final Queue<WeakKey> order = new ArrayDeque<>();
+        private final AtomicLong sampledHits = new AtomicLong();
+        long misses;
+        long evictions;
+        long collections;
+
+        Segment(final int capacity) {
+            this.capacity = capacity;
+        }
+
+        Object get(final LookupKey key, final Linkage linkage) {
+            final WeakProxy proxy = entries.get(key);
+            final Object p = proxy == null || proxy.linkage != linkage ? null : proxy.get();
+            if (p != null && ThreadLocalRandom.current().nextInt(HIT_SAMPLING) == 0) {
+                sampledHits.incrementAndGet();
+            }
+            return p;
+        }
+
+        long hits() {
+            return sampledHits.get() * HIT_SAMPLING;
+        }
+
+        synchronized Object putIfAbsent(final LookupKey key, final Object proxy, final Linkage linkage) {
+            expunge();
+            final WeakProxy existing = entries.get(key);
+            if (existing != null) {
+                final Object p = existing.get();
+                if (p != null && existing.linkage == linkage) {
+                    return p;
+                }
+                misses++;
+                if (p == null) {
+                    collections++;
+                }
+                // replaces the value only: the existing weak key stays, and
+                // keeps its place in the eviction order
+                entries.put(key, new WeakProxy(proxy, linkage));
+                return proxy;
+            }
+            misses++;
+            final WeakKey weakKey = new WeakKey(key, queue);
+            entries.put(weakKey, new WeakProxy(proxy, linkage));
+            order.add(weakKey);
+            while (entries.size() > capacity) {
+                final WeakKey eldest = order.poll();
+                if (entries.remove(eldest) != null) {
+                    evictions++;
+                }
+            }
+            if (order.size() > 2 * capacity) {
+                // drops the keys of expunged entries
+                final Iterator<WeakKey> keys = order.iterator();
+                while (keys.hasNext()) {
+                    if (!entries.containsKey(keys.next())) {
+                        keys.remove();
+                    }
+                }
+            }
+            return proxy;
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        synchronized void clear() {
+            expunge();
+            entries.clear();
+            order.clear();
+        }
+
+        /**
+         * Removes the entries of targets that have been garbage collected
+         */
+        private void expunge() {
+            Object key;
+            while ((key = queue.poll()) != null) {
+                if (entries.remove(key) != null) {
+                    collections++;
+                }
+            }
+        }
+    }
+
+    private final Segment[] segments;
+    private final int maximumSize;
+
+    /**
+     * Creates an empty cache
+     *
+     * @param maximumSize the most proxies to remember
+     * @throws IllegalArgumentException if the maximum size is less than 1
+     */
+    public ProxyCache(final int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize: " + maximumSize);
+        }
+        int count = 1;
+        while (count < Runtime.getRuntime().availableProcessors() && count * 2 <= maximumSize) {
+            count *= 2;
+        }
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(maximumSize / count);
+        }
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Returns the cached proxy for a target and a type, creating it if needed
+     *
+     * @param <T> The class you want this object to be treated as
+     * @param o The object you want to duck type
+     * @param c The class you want this object to be treated as
+     * @return "o", interpreted as the requested type
+     * @see DuckType#asA(Object, Class)
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T asA(final Object o, final Class<T> c) {
+        final Linkage linkage = Linkage.getDefault();
+        final Backend backend = Backend.getDefault();
+        // targets are rarely wrapped as many types, so only the target is hashed
+        int hash = System.identityHashCode(o);
+        hash ^= hash >>> 16;
+        final Segment segment = segments[hash & (segments.length - 1)];
+        final LookupKey key = new LookupKey(o, c, backend, hash);
+        final Object cached = segment.get(key, linkage);
+        if (cached != null) {
+            return (T) cached;
+        }
+        final T proxy = DuckType.adapterFor(o.getClass(), c).wrap(o);
+        if (proxy == o) {
+            // nothing to remember: "o" already is a "c"
+            return proxy;
+        }
+        return (T) segment.putIfAbsent(key, proxy, linkage);
+    }
+
+    /**
+     * Returns the most proxies this cache remembers
+     *
+     * @return the maximum size
+     */
+    public int maximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Returns how many proxies this cache currently remembers, including
+     * some whose target may already have been garbage collected
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns how many lookups found a proxy, estimated from a sample of them
+     *
+     * @return the approximate number of hits
+     */
+    public long hits() {
+        long hits = 0;
+        for (Segment segment : segments) {
+            hits += segment.hits();
+        }
+        return hits;
+    }
+
+    /**
+     * Returns how many lookups had to create a proxy
+     *
+     * @return the number of misses
+     */
+    public long misses() {
+        long misses = 0;
+        for (Segment segment : segments) {
+            misses += segment.misses;
+        }
+        return misses;
+    }
+
+    /**
+     * Returns how many entries were evicted to keep the cache within its
+     * maximum size
+     *
+     * @return the number of evictions
+     */
+    public long evictions() {
+        long evictions = 0;
+        for (Segment segment : segments) {
+            evictions += segment.evictions;
+        }
+        return evictions;
+    }
+
+    /**
+     * Returns how many entries were dropped because their target or their
+     * proxy had been garbage collected
+     *
+     * @return the number of collected entries
+     */
+    public long collections() {
+        long collections = 0;
+        for (Segment segment : segments) {
+            collections += segment.collections;
+        }
+        return collections;
+    }
+
+    /**
+     * Forgets all the proxies
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+}
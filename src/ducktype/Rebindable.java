@@ -0,0 +1,153 @@
+package ducktype;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A duck-typed proxy whose target can be swapped
+ *
+ * <p>Obtained from {@link DuckType#rebindable(Class)}. A single proxy can
+ * stand for each element of a batch in turn, instead of allocating a proxy per
+ * element:</p>
+ *
+ * <pre>
+ * Rebindable&lt;Duck&gt; ducks = DuckType.rebindable(Duck.class);
+ * for (Object item : items) {
+ *     ducks.rebind(item).quack();
+ * }
+ * </pre>
+ *
+ * <p>Rebinding to an object of the same class as the previous target only
+ * stores the new target. Rebinding to an object of another class switches to
+ * that class's dispatch table, which is resolved the first time the class is
+ * seen and kept for later rebinds.</p>
+ *
+ * <p>Rebindable proxies are meant as flyweights for single-threaded loops:
+ * they are not thread-safe, and should not be stored or shared, since they
+ * change identity with every rebind.</p>
+ *
+ * @param <T> the type the targets are presented as
+ */
+public final class Rebindable<T> {
+
+    private static final class RebindableMethodInterceptor implements Interceptor {
+
+        private final Method[] slots;
+        private final Linkage linkage;
+        private final Map<Class<?>, Invoker[]> tables = new HashMap<>();
+        private Object target;
+        private Class<?> targetClass;
+        private Invoker[] table;
+
+        RebindableMethodInterceptor(final Method[] slots, final Linkage linkage) {
+            this.slots = slots;
+            this.linkage = linkage;
+        }
+
+        void bind(final Object target) {
+            final Class<?> c = target.getClass();
+            if (c != targetClass) {
+                Invoker[] t = tables.get(c);
+                if (t == null) {
+                    t = tableFor(c);
+                    tables.put(c, t);
+                }
+                table = t;
+                targetClass = c;
+            }
+            this.target = target;
+        }
+
+        private Invoker[] tableFor(final Class<?> c) {
+            final MethodIndex index = MethodIndex.of(c, linkage);
+            final Invoker[] t = new Invoker[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] != null) {
+                    final Invoker objectMethod = DuckType.objectMethodInvoker(slots[i]);
+                    t[i] = objectMethod != null ? objectMethod : index.bind(slots[i].getName(), slots[i].getParameterTypes());
+                }
+            }
+            return t;
+        }
+
+        @Override
+        public Object intercept(final Object o, final Method method, final int slot, final Object[] os) throws Throwable {
+            final Object t = target;
+            if (t == null) {
+                throw new IllegalStateException("unbound proxy");
+            }
+            if (slot < table.length) {
+                final Invoker invoker = table[slot];
+                if (invoker != null) {
+                    return invoker.invoke(t, os);
+                }
+            }
+
+            // not one of the methods we adapt up front, eg. a protected method
+            final MethodIndex index = MethodIndex.of(targetClass, linkage);
+            final Class<?>[] parameterTypes = method.getParameterTypes();
+            final Invoker invoker = index.find(method.getName(), parameterTypes);
+            if (invoker == null) {
+                throw new NoSuchMethodError(index.describe(method.getName(), parameterTypes));
+            }
+            return invoker.invoke(t, os);
+        }
+    }
+
+    private final RebindableMethodInterceptor interceptor;
+    private final T proxy;
+
+    /**
+     * Returns the current target of a rebindable proxy
+     *
+     * @param interceptor the interceptor of a proxy
+     * @return the target, or {@code null} if the proxy isn't rebindable or
+     * isn't bound yet
+     */
+    static Object targetOf(final Interceptor interceptor) {
+        return interceptor instanceof RebindableMethodInterceptor ? ((RebindableMethodInterceptor) interceptor).target : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    Rebindable(final Class<T> type, final Linkage linkage) {
+        final Enhancers.ProxyClass proxyClass = Enhancers.proxyClass(type);
+        this.interceptor = new RebindableMethodInterceptor(proxyClass.slots(), linkage);
+        this.proxy = (T) proxyClass.newInstance(interceptor);
+    }
+
+    /**
+     * Points the proxy at a new target
+     *
+     * @param target the object the proxy should stand for from now on
+     * @return the proxy, standing for "target"
+     * @throws NullPointerException if "target" is null
+     */
+    public T rebind(final Object target) {
+        if (target == null) {
+            throw new NullPointerException("target");
+        }
+        interceptor.bind(target);
+        return proxy;
+    }
+
+    /**
+     * Returns the proxy
+     *
+     * @return the proxy, which throws an {@code IllegalStateException} when
+     * called before the first {@link #rebind(Object)}
+     */
+    public T proxy() {
+        return proxy;
+    }
+
+    /**
+     * Returns the object the proxy currently stands for
+     *
+     * @return the current target, or {@code null} before the first
+     * {@link #rebind(Object)}
+     */
+    public Object target() {
+        return interceptor.target;
+    }
+}
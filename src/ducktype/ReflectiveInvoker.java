@@ -0,0 +1,32 @@
+package ducktype;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Calls a method with {@code java.lang.reflect}
+ */
+final class ReflectiveInvoker implements Invoker {
+
+    private final Method method;
+
+    ReflectiveInvoker(final Method method) {
+        this.method = method;
+        try {
+            // skips the per-call access check, and lets us call public
+            // methods of non-public classes
+            method.setAccessible(true);
+        } catch (RuntimeException re) {
+            // not allowed; fall back to checked access
+        }
+    }
+
+    @Override
+    public Object invoke(final Object target, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ite) {
+            throw ite.getCause();
+        }
+    }
+}
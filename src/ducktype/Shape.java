@@ -0,0 +1,125 @@
+package ducktype;
+
+import java.lang.invoke.MethodHandle;
+
+/**
+ * The ordered list of delegate classes of a {@link Mixin}
+ *
+ * <p>Shapes work like the hidden classes of JavaScript engines: every mixin
+ * starts out with the {@linkplain #EMPTY empty} shape, and inheriting a
+ * delegate transitions it to the shape that has the delegate's class appended.
+ * Transitions are cached, so all mixins whose delegates have the same classes
+ * in the same order share one shape, and with it the dispatch plans computed
+ * for that shape. Creating a mixin with a known shape and casting it to a
+ * known type therefore never plans or generates anything.</p>
+ *
+ * <p>A shape is held by the class of its last delegate, rather than by the
+ * shape it transitions from, so the shapes of classes that are no longer used
+ * are collected, together with their plans and adapters. Plans and adapters
+ * are kept in {@link BoundedCache}s.</p>
+ */
+final class Shape {
+
+    /**
+     * The shape of a mixin without delegates
+     */
+    static final Shape EMPTY = new Shape(new Class<?>[0]);
+
+    /**
+     * A compiled adapter constructor. A {@code null} constructor means that no
+     * adapter can be generated.
+     */
+    private static final class Compiled {
+
+        final MethodHandle constructor;
+
+        Compiled(final MethodHandle constructor) {
+            this.constructor = constructor;
+        }
+    }
+
+    private final Class<?>[] delegateClasses;
+    /**
+     * Whether the last delegate class is that of objects that stand for
+     * others, and that {@link Mixin#inherit(Object[])} therefore flattens
+     */
+    private final boolean wrapping;
+    private final ClassValue<Shape> transitions = new ClassValue<Shape>() {
+        @Override
+        protected Shape computeValue(final Class<?> delegateClass) {
+            final Class<?>[] classes = new Class<?>[delegateClasses.length + 1];
+            System.arraycopy(delegateClasses, 0, classes, 0, delegateClasses.length);
+            classes[delegateClasses.length] = delegateClass;
+            return new Shape(classes);
+        }
+    };
+    private final BoundedCache<Enhancers.ProxyClass, DispatchPlan>[] plans;
+    private final BoundedCache<Class<?>, Compiled> compiled = new BoundedCache<>();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Shape(final Class<?>[] delegateClasses) {
+        this.delegateClasses = delegateClasses;
+        final Class<?> last = delegateClasses.length == 0 ? null : delegateClasses[delegateClasses.length - 1];
+        this.wrapping = last != null && (last == Mixin.class || Enhancers.isProxyClass(last) || Enhancers.isAdapterClass(last));
+        this.plans = new BoundedCache[Linkage.values().length];
+        for (int i = 0; i < plans.length; i++) {
+            plans[i] = new BoundedCache<>();
+        }
+    }
+
+    /**
+     * Returns the number of delegates of this shape
+     */
+    int size() {
+        return delegateClasses.length;
+    }
+
+    /**
+     * Tells whether the last delegate of this shape may stand for other
+     * objects, see {@link DuckType#unwrap(Object)}
+     */
+    boolean isWrapping() {
+        return wrapping;
+    }
+
+    /**
+     * Returns the shape with a delegate class appended
+     *
+     * @param delegateClass the class of the new, last delegate
+     * @return the shared shape
+     */
+    Shape with(final Class<?> delegateClass) {
+        return transitions.get(delegateClass);
+    }
+
+    /**
+     * Returns the dispatch plan of a proxy class for mixins of this shape
+     *
+     * @param proxyClass the proxy class of the requested type, or types
+     * @param linkage how the planned methods should be linked
+     * @return the shared plan
+     */
+    DispatchPlan plan(final Enhancers.ProxyClass proxyClass, final Linkage linkage) {
+        final BoundedCache<Enhancers.ProxyClass, DispatchPlan> byType = plans[linkage.ordinal()];
+        final DispatchPlan plan = byType.get(proxyClass);
+        return plan != null ? plan : byType.putIfAbsent(proxyClass, DispatchPlan.build(proxyClass, delegateClasses, linkage));
+    }
+
+    /**
+     * Returns the constructor of the compiled adapter of a type for frozen
+     * mixins of this shape
+     *
+     * @param type the requested type
+     * @return a handle of type {@code (Object, Object[])Object} that creates an
+     * adapter for a mixin and an array of delegates of this shape, or
+     * {@code null} if no adapter can be generated
+     */
+    MethodHandle compiled(final Class<?> type) {
+        Compiled c = compiled.get(type);
+        if (c == null) {
+            final MethodHandle constructor = AdapterGenerator.compile(type, delegateClasses, true);
+            c = compiled.putIfAbsent(type, new Compiled(constructor == null ? null : constructor.asSpreader(Object[].class, delegateClasses.length)));
+        }
+        return c.constructor;
+    }
+}
@@ -0,0 +1,141 @@
+package ducktype;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+
+/**
+ * A soak test for metaspace: duck types classes that keep being replaced
+ *
+ * <p>Every round loads fresh copies of a few target classes in a new class
+ * loader, the way a multi-tenant server loads each tenant's code, and wraps
+ * them with every linkage and backend, both with {@link DuckType} and with
+ * frozen and live {@link Mixin}s. Each round also loads its own copy of a
+ * requested type, whose methods take another tenant class, and wraps a
+ * long-lived object as that type. Once a round is over, nothing refers to the
+ * tenant anymore, so the classes generated for it should be unloaded along
+ * with its own, and metaspace should stay flat. Pass the number of rounds as
+ * the first argument.</p>
+ */
+public class Soak {
+
+    /**
+     * A requested type that each tenant has its own copy of
+     */
+    public interface Listener extends Benchmark.Counter {
+
+        void take(Event event);
+    }
+
+    public static class Event {
+    }
+
+    private static final String[] TENANT_CLASSES = {
+        Benchmark.Accumulator.class.getName(), Benchmark.Tally.class.getName(), Benchmark.Doubler.class.getName(),
+        Listener.class.getName(), Event.class.getName()
+    };
+
+    /**
+     * Outlives every tenant, like the objects of a server's own classes do
+     */
+    private static final Object SHARED = new Benchmark.Accumulator();
+
+    /**
+     * Loads its own copy of the tenant classes, and delegates everything else
+     */
+    private static final class TenantLoader extends ClassLoader {
+
+        TenantLoader() {
+            super(Soak.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+            for (String tenantClass : TENANT_CLASSES) {
+                if (tenantClass.equals(name)) {
+                    synchronized (getClassLoadingLock(name)) {
+                        Class<?> c = findLoadedClass(name);
+                        if (c == null) {
+                            final byte[] b = bytesOf(name);
+                            c = defineClass(name, b, 0, b.length);
+                        }
+                        return c;
+                    }
+                }
+            }
+            return super.loadClass(name, resolve);
+        }
+
+        private static byte[] bytesOf(final String name) throws ClassNotFoundException {
+            try (InputStream in = Soak.class.getClassLoader().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                if (in == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[4096];
+                for (int n; (n = in.read(buffer)) > 0;) {
+                    out.write(buffer, 0, n);
+                }
+                return out.toByteArray();
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+    }
+
+    static long sink;
+
+    private static long round(final int round) throws ReflectiveOperationException {
+        final ClassLoader tenant = new TenantLoader();
+        final Object accumulator = tenant.loadClass(TENANT_CLASSES[0]).getDeclaredConstructor().newInstance();
+        final Object tally = tenant.loadClass(TENANT_CLASSES[1]).getDeclaredConstructor().newInstance();
+        final Object doubler = tenant.loadClass(TENANT_CLASSES[2]).getDeclaredConstructor().newInstance();
+        final Class<?> listener = tenant.loadClass(TENANT_CLASSES[3]);
+        long result = 0;
+        for (Backend backend : Backend.values()) {
+            Backend.setDefault(backend);
+            for (Linkage linkage : Linkage.values()) {
+                Linkage.setDefault(linkage);
+                result += DuckType.asA(accumulator, Benchmark.Counter.class).add(round);
+                result += DuckType.asA(tally, Benchmark.Counter.class).add(round);
+                final Mixin mixin = Mixin.mixin(accumulator, doubler);
+                result += mixin.asA(Benchmark.Counter.class).add(round);
+                result += mixin.freeze().asA(Benchmark.Counter.class).add(round);
+                result += ((Benchmark.Twice) mixin.asA(Benchmark.Counter.class, Benchmark.Twice.class)).twice(round);
+                result += ((Benchmark.Counter) DuckType.asA(SHARED, listener)).add(round);
+                result += ((Benchmark.Counter) Mixin.mixin(SHARED).asA(listener)).add(round);
+            }
+        }
+        return result;
+    }
+
+    private static long metaspaceUsed() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals("Metaspace")) {
+                return pool.getUsage().getUsed();
+            }
+        }
+        return 0;
+    }
+
+    public static void main(final String[] args) throws ReflectiveOperationException {
+        final int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int every = Math.max(1, rounds / 10);
+        final ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+        final Backend backend = Backend.getDefault();
+        final Linkage linkage = Linkage.getDefault();
+        for (int round = 1; round <= rounds; round++) {
+            sink += round(round);
+            if (round % every == 0) {
+                System.gc();
+                System.out.printf("round %6d: %8d KB of metaspace, %6d classes loaded, %8d unloaded%n",
+                        round, metaspaceUsed() / 1024, classes.getLoadedClassCount(), classes.getUnloadedClassCount());
+            }
+        }
+        Backend.setDefault(backend);
+        Linkage.setDefault(linkage);
+    }
+}